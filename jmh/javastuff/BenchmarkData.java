@@ -0,0 +1,78 @@
+package javastuff;
+
+import javastuff.onto.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generated books, agents and offers for the benchmarks
+ */
+public class BenchmarkData {
+
+    public static BookInfo book(String name, int id) {
+        BookInfo bi = new BookInfo();
+        bi.setBookName(name);
+        bi.setBookID(id);
+        return bi;
+    }
+
+    /**
+     * Creates an agent which owns the first half of bookCount books and has the other half as its goals
+     */
+    public static AgentInfo agentInfo(int bookCount, int firstID) {
+
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+        ArrayList<Goal> goals = new ArrayList<Goal>();
+
+        for (int i = 0; i < bookCount; i++) {
+            BookInfo bi = book("book-" + i, firstID + i);
+            if (i < bookCount / 2) {
+                books.add(bi);
+            } else {
+                Goal g = new Goal();
+                g.setBook(bi);
+                g.setValue(50 + (i * 37) % 100);
+                goals.add(g);
+            }
+        }
+
+        AgentInfo ai = new AgentInfo();
+        ai.setBooks(books);
+        ai.setGoals(goals);
+        ai.setMoney(400);
+        return ai;
+    }
+
+    public static ArrayList<BookInfo> firstBooks(List<BookInfo> books, int count) {
+        return new ArrayList<BookInfo>(books.subList(0, Math.min(count, books.size())));
+    }
+
+    public static ArrayList<BookInfo> goalBooks(List<Goal> goals, int count) {
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+        for (int i = 0; i < Math.min(count, goals.size()); i++)
+            books.add(goals.get(i).getBook());
+        return books;
+    }
+
+    public static Offer offer(ArrayList<BookInfo> books, double money) {
+        Offer o = new Offer();
+        o.setBooks(books);
+        o.setMoney(money);
+        return o;
+    }
+
+    public static MakeTransaction order(String sender, String receiver, String conversationID,
+                                        ArrayList<BookInfo> sending, double sendingMoney,
+                                        ArrayList<BookInfo> receiving, double receivingMoney) {
+        MakeTransaction mt = new MakeTransaction();
+        mt.setSenderName(sender);
+        mt.setReceiverName(receiver);
+        mt.setTradeConversationID(conversationID);
+        mt.setSendingBooks(sending);
+        mt.setSendingMoney(sendingMoney);
+        mt.setReceivingBooks(receiving);
+        mt.setReceivingMoney(receivingMoney);
+        return mt;
+    }
+}
@@ -0,0 +1,144 @@
+package javastuff;
+
+import jade.content.ContentElement;
+import jade.content.ContentManager;
+import jade.content.onto.Ontology;
+import jade.content.onto.basic.Action;
+import jade.content.lang.sl.SLCodec;
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+import javastuff.onto.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filling and extracting the content of the ContractNet and settlement messages
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ContentBenchmark {
+
+    @Param({"fipa-sl", BookCodec.NAME})
+    String language;
+
+    //number of books in the offers and in the transaction
+    @Param({"1", "4", "16"})
+    int offerSize;
+
+    ContentManager cm;
+
+    ChooseFrom chooseFrom;
+    Action makeTransaction;
+
+    ACLMessage chooseFromMsg;
+    ACLMessage makeTransactionMsg;
+
+    //the requests the traders repeat, encoded by the content manager and by the content cache of the trader
+    ContentCache cache;
+    Action getMyInfo;
+    Action sellMeBooks;
+
+    @Setup
+    public void setup() throws Exception {
+        Ontology onto = BookOntology.getInstance();
+
+        cm = new ContentManager();
+        cm.registerLanguage(new SLCodec());
+        cm.registerLanguage(new BookCodec());
+        cm.registerOntology(onto);
+
+        AgentInfo ai = BenchmarkData.agentInfo(2 * offerSize, 100);
+        ArrayList<BookInfo> books = ai.getBooks();
+        ArrayList<BookInfo> goals = BenchmarkData.goalBooks(ai.getGoals(), offerSize);
+
+        ArrayList<Offer> offers = new ArrayList<Offer>();
+        offers.add(BenchmarkData.offer(new ArrayList<BookInfo>(), 215.5));
+        offers.add(BenchmarkData.offer(goals, 95.25));
+
+        chooseFrom = new ChooseFrom();
+        chooseFrom.setWillSell(books);
+        chooseFrom.setOffers(offers);
+
+        MakeTransaction mt = BenchmarkData.order("t1@127.0.0.1:1099/JADE", "t2@127.0.0.1:1099/JADE",
+                "C1234567_1397654321000", goals, 95.25, books, 0);
+        AID env = new AID("env", AID.ISLOCALNAME);
+        makeTransaction = new Action(env, mt);
+
+        cache = new ContentCache(cm, new Metrics());
+        getMyInfo = new Action(env, new GetMyInfo());
+        SellMeBooks smb = new SellMeBooks();
+        smb.setBooks(goals);
+        sellMeBooks = new Action(new AID("t1", AID.ISLOCALNAME), smb);
+
+        chooseFromMsg = message();
+        cm.fillContent(chooseFromMsg, chooseFrom);
+        makeTransactionMsg = message();
+        cm.fillContent(makeTransactionMsg, makeTransaction);
+    }
+
+    ACLMessage message() {
+        ACLMessage msg = new ACLMessage(ACLMessage.PROPOSE);
+        msg.setLanguage(language);
+        msg.setOntology(BookOntology.getInstance().getName());
+        return msg;
+    }
+
+    @Benchmark
+    public ACLMessage fillChooseFrom() throws Exception {
+        ACLMessage msg = message();
+        cm.fillContent(msg, chooseFrom);
+        return msg;
+    }
+
+    @Benchmark
+    public ContentElement extractChooseFrom() throws Exception {
+        return cm.extractContent(chooseFromMsg);
+    }
+
+    @Benchmark
+    public ACLMessage fillMakeTransaction() throws Exception {
+        ACLMessage msg = message();
+        cm.fillContent(msg, makeTransaction);
+        return msg;
+    }
+
+    @Benchmark
+    public ContentElement extractMakeTransaction() throws Exception {
+        return cm.extractContent(makeTransactionMsg);
+    }
+
+    @Benchmark
+    public ACLMessage fillGetMyInfo() throws Exception {
+        ACLMessage msg = message();
+        cm.fillContent(msg, getMyInfo);
+        return msg;
+    }
+
+    @Benchmark
+    public ACLMessage fillGetMyInfoCached() throws Exception {
+        ACLMessage msg = message();
+        cache.fillContent(msg, getMyInfo, "GetMyInfo env");
+        return msg;
+    }
+
+    @Benchmark
+    public ACLMessage fillSellMeBooks() throws Exception {
+        ACLMessage msg = message();
+        cm.fillContent(msg, sellMeBooks);
+        return msg;
+    }
+
+    //the key is built for every message, as in the trader
+    @Benchmark
+    public ACLMessage fillSellMeBooksCached() throws Exception {
+        ACLMessage msg = message();
+        StringBuilder key = new StringBuilder("SellMeBooks");
+        for (BookInfo bi : ((SellMeBooks)sellMeBooks.getAction()).getBooks())
+            key.append(' ').append(bi.getBookName()).append('#').append(bi.getBookID());
+        cache.fillContent(msg, sellMeBooks, key.toString());
+        return msg;
+    }
+}
@@ -0,0 +1,63 @@
+package javastuff;
+
+import javastuff.onto.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation and settlement of transactions in the environment
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LedgerBenchmark {
+
+    //number of books of each agent
+    @Param({"8", "64", "512", "4096"})
+    int bookCount;
+
+    //number of books sent by each side of the transaction
+    @Param({"1", "4", "16"})
+    int offerSize;
+
+    BookLedger ledger;
+
+    MakeTransaction order1;
+    MakeTransaction order2;
+    MakeTransaction revert1;
+    MakeTransaction revert2;
+
+    @Setup
+    public void setup() {
+        AgentInfo ai1 = BenchmarkData.agentInfo(2 * bookCount, 0);
+        AgentInfo ai2 = BenchmarkData.agentInfo(2 * bookCount, 2 * bookCount);
+
+        ledger = new BookLedger();
+        ledger.addAgent("a1", ai1);
+        ledger.addAgent("a2", ai2);
+
+        //the books are taken from the end of the lists, so they are found last by linear scans
+        int from = Math.max(0, bookCount - offerSize);
+        ArrayList<BookInfo> books1 = new ArrayList<BookInfo>(ai1.getBooks().subList(from, bookCount));
+        ArrayList<BookInfo> books2 = new ArrayList<BookInfo>(ai2.getBooks().subList(from, bookCount));
+
+        order1 = BenchmarkData.order("a1", "a2", "c1", books1, 10, books2, 0);
+        order2 = BenchmarkData.order("a2", "a1", "c1", books2, 0, books1, 10);
+        revert1 = BenchmarkData.order("a1", "a2", "c2", books2, 0, books1, 10);
+        revert2 = BenchmarkData.order("a2", "a1", "c2", books1, 10, books2, 0);
+    }
+
+    @Benchmark
+    public String validate() {
+        return ledger.validate(order1, order2);
+    }
+
+    //settles the transaction and the opposite one, so the ledger stays the same
+    @Benchmark
+    public PositionDelta[] settleAndRevert() {
+        ledger.apply(order1, order2);
+        return ledger.apply(revert1, revert2);
+    }
+}
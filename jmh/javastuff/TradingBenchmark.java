@@ -0,0 +1,67 @@
+package javastuff;
+
+import javastuff.onto.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The decisions of the trader -- valuation of offers, purchase and sale proposals and the utility
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TradingBenchmark {
+
+    //number of books in the market, the trader owns one half and wants the other one
+    @Param({"8", "64", "512"})
+    int bookCount;
+
+    //number of books in the offers
+    @Param({"1", "4", "16"})
+    int offerSize;
+
+    BookTrader trader;
+    AgentInfo agentInfo;
+
+    Offer heWants;
+    Offer weWant;
+    ArrayList<BookInfo> wanted;
+
+    @Setup
+    public void setup() {
+        agentInfo = BenchmarkData.agentInfo(bookCount, 0);
+
+        trader = new BookTrader();
+        trader.myBooks = agentInfo.getBooks();
+        trader.myGoal = agentInfo.getGoals();
+        trader.myMoney = agentInfo.getMoney();
+        trader.logic.startTrading();
+        trader.logic.updateLogic();
+
+        heWants = BenchmarkData.offer(BenchmarkData.firstBooks(agentInfo.getBooks(), offerSize), 20);
+        weWant = BenchmarkData.offer(BenchmarkData.goalBooks(agentInfo.getGoals(), offerSize), 0);
+        wanted = BenchmarkData.firstBooks(agentInfo.getBooks(), offerSize);
+    }
+
+    @Benchmark
+    public double acceptTrade() {
+        return trader.logic.acceptTrade(heWants, weWant);
+    }
+
+    @Benchmark
+    public ArrayList<BookInfo> proposePurchase() {
+        return trader.logic.proposePurchase();
+    }
+
+    @Benchmark
+    public ArrayList<Offer> proposeSale() {
+        return trader.logic.proposeSale(wanted);
+    }
+
+    @Benchmark
+    public double computeUtility() {
+        return Utils.computeUtility(agentInfo);
+    }
+}
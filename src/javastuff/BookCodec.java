@@ -0,0 +1,428 @@
+package javastuff;
+
+import jade.content.abs.*;
+import jade.content.lang.ByteArrayCodec;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Compact binary content language for the book ontology.
+ *
+ * The content is written as a tree of the abstract descriptors. Integers are written as variable length numbers (so
+ * book IDs take one or two bytes) and all the strings (type names, slot names, book names) are interned -- every string
+ * is written only once per message and referenced by its index afterwards. The names of the ontology elements and the
+ * names of the books are known in advance and never written at all.
+ *
+ * Every message starts with the version of the format and a check byte of the dictionary, the content of a peer with
+ * another format or another dictionary is rejected instead of being decoded wrong.
+ *
+ * The codec does not keep any state between the messages, so it can be used from several threads.
+ */
+public class BookCodec extends ByteArrayCodec {
+
+    public static final String NAME = "book-binary";
+
+    //change with every change of the encoding (the changes of the dictionary are caught by its check byte)
+    static final int FORMAT_VERSION = 1;
+
+    //kinds of the encoded descriptors
+    static final int PRIMITIVE_STRING = 1;
+    static final int PRIMITIVE_INT = 2;
+    static final int PRIMITIVE_LONG = 3;
+    static final int PRIMITIVE_DOUBLE = 4;
+    static final int PRIMITIVE_WHOLE_DOUBLE = 5;
+    static final int PRIMITIVE_FLOAT = 6;
+    static final int PRIMITIVE_BOOLEAN = 7;
+    static final int PRIMITIVE_DATE = 8;
+    static final int PRIMITIVE_BYTES = 9;
+    static final int CONCEPT = 10;
+    static final int AGENT_ACTION = 11;
+    static final int PREDICATE = 12;
+    static final int AID = 13;
+    static final int AGGREGATE = 14;
+    static final int CONTENT_ELEMENT_LIST = 15;
+
+    //strings both sides know without sending them, their indices and the check byte of the list
+    static final String[] DICTIONARY;
+    static final HashMap<String, Integer> DICTIONARY_INDEX = new HashMap<String, Integer>();
+    static final int DICTIONARY_CHECK;
+
+    static {
+        ArrayList<String> dict = new ArrayList<String>();
+        Collections.addAll(dict,
+                "action", "actor", "result", "value", "agent-identifier", "name", "addresses", "resolvers", "sequence",
+                "AgentInfo", "BookInfo", "ChooseFrom", "Chosen", "GetMyInfo", "Goal", "MakeTransaction", "Offer",
+                "PositionDelta", "SellMeBooks", "StartTrading",
+                "bookName", "bookID", "books", "goals", "money", "book", "offers", "willSell", "offer",
+                "senderName", "receiverName", "tradeConversationID", "sendingBooks", "sendingMoney",
+                "receivingBooks", "receivingMoney", "booksIn", "booksOut", "moneyChange",
+                "PrepareTransfer", "CommitTransfer", "AbortTransfer", "transferID", "agentName", "moneyOut", "moneyIn",
+                "MakeTransactions", "orders", "LimitOrder", "PostQuotes", "buy", "price",
+                "GetHolderIndex", "HolderIndex", "BookHolders", "knownAgents", "firstAgent", "agents", "holders");
+
+        ArrayList<String> bookNames = new ArrayList<String>(Constants.getBooknames());
+        Collections.sort(bookNames);
+        dict.addAll(bookNames);
+
+        DICTIONARY = dict.toArray(new String[dict.size()]);
+        for (int i = 0; i < DICTIONARY.length; i++)
+            if (DICTIONARY_INDEX.put(DICTIONARY[i], i) != null)
+                throw new IllegalStateException("word " + DICTIONARY[i] + " is in the codec dictionary twice");
+        DICTIONARY_CHECK = dict.hashCode() & 0xff;
+    }
+
+    public BookCodec() {
+        super(NAME);
+    }
+
+    @Override
+    public byte[] encode(AbsContentElement content) throws CodecException {
+        return encode(null, content);
+    }
+
+    @Override
+    public byte[] encode(Ontology ontology, AbsContentElement content) throws CodecException {
+        Writer w = new Writer();
+        w.out.write(FORMAT_VERSION);
+        w.out.write(DICTIONARY_CHECK);
+        w.writeObject(content);
+        return w.out.toByteArray();
+    }
+
+    @Override
+    public AbsContentElement decode(byte[] content) throws CodecException {
+        return decode(null, content);
+    }
+
+    @Override
+    public AbsContentElement decode(Ontology ontology, byte[] content) throws CodecException {
+        Reader r = new Reader(content);
+        int version = r.readByte();
+        if (version != FORMAT_VERSION)
+            throw new CodecException("unsupported format version " + version + ", expected " + FORMAT_VERSION);
+        if (r.readByte() != DICTIONARY_CHECK)
+            throw new CodecException("content encoded with another dictionary");
+        AbsObject abs = r.readObject();
+        if (!(abs instanceof AbsContentElement))
+            throw new CodecException("content is not a content element: " + abs.getTypeName());
+        return (AbsContentElement)abs;
+    }
+
+    //encodes the descriptors of one message
+    static class Writer {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        //the strings of this message which are not in the dictionary, numbered after it (created with the first one)
+        HashMap<String, Integer> strings;
+
+        void writeObject(AbsObject abs) throws CodecException {
+
+            if (abs instanceof AbsPrimitive) {
+                writePrimitive((AbsPrimitive)abs);
+            }
+            else if (abs instanceof AbsAggregate) {
+                AbsAggregate agg = (AbsAggregate)abs;
+                out.write(AGGREGATE);
+                writeString(agg.getTypeName());
+                writeVarint(agg.size());
+                for (int i = 0; i < agg.size(); i++)
+                    writeObject(agg.get(i));
+            }
+            else if (abs instanceof AbsContentElementList) {
+                AbsContentElementList list = (AbsContentElementList)abs;
+                out.write(CONTENT_ELEMENT_LIST);
+                writeVarint(list.size());
+                for (int i = 0; i < list.size(); i++)
+                    writeObject(list.get(i));
+            }
+            else if (abs instanceof AbsAID) {
+                writeSlots(AID, abs);
+            }
+            else if (abs instanceof AbsAgentAction) {
+                writeSlots(AGENT_ACTION, abs);
+            }
+            else if (abs instanceof AbsConcept) {
+                writeSlots(CONCEPT, abs);
+            }
+            else if (abs instanceof AbsPredicate) {
+                writeSlots(PREDICATE, abs);
+            }
+            else {
+                throw new CodecException("unsupported descriptor: " + abs.getClass().getName());
+            }
+        }
+
+        void writeSlots(int kind, AbsObject abs) throws CodecException {
+            out.write(kind);
+            writeString(abs.getTypeName());
+
+            String[] names = abs.getNames();
+            int count = 0;
+            for (String name : names)
+                if (abs.getAbsObject(name) != null)
+                    count++;
+
+            writeVarint(count);
+            for (String name : names) {
+                AbsObject value = abs.getAbsObject(name);
+                if (value == null)
+                    continue;
+                writeString(name);
+                writeObject(value);
+            }
+        }
+
+        void writePrimitive(AbsPrimitive p) throws CodecException {
+            Object value = p.getObject();
+
+            if (value instanceof String) {
+                out.write(PRIMITIVE_STRING);
+                writeString((String)value);
+            }
+            else if (value instanceof Integer) {
+                out.write(PRIMITIVE_INT);
+                writeVarlong(zigzag((Integer)value));
+            }
+            else if (value instanceof Long) {
+                out.write(PRIMITIVE_LONG);
+                writeVarlong(zigzag((Long)value));
+            }
+            else if (value instanceof Double) {
+                double d = (Double)value;
+                //prices are often whole numbers, write them as integers
+                if (d == (long)d && !(d == 0 && 1 / d < 0)) {
+                    out.write(PRIMITIVE_WHOLE_DOUBLE);
+                    writeVarlong(zigzag((long)d));
+                } else {
+                    out.write(PRIMITIVE_DOUBLE);
+                    writeFixed64(Double.doubleToRawLongBits(d));
+                }
+            }
+            else if (value instanceof Float) {
+                out.write(PRIMITIVE_FLOAT);
+                writeFixed32(Float.floatToRawIntBits((Float)value));
+            }
+            else if (value instanceof Boolean) {
+                out.write(PRIMITIVE_BOOLEAN);
+                out.write((Boolean)value ? 1 : 0);
+            }
+            else if (value instanceof Date) {
+                out.write(PRIMITIVE_DATE);
+                writeVarlong(zigzag(((Date)value).getTime()));
+            }
+            else if (value instanceof byte[]) {
+                byte[] bytes = (byte[])value;
+                out.write(PRIMITIVE_BYTES);
+                writeVarint(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+            else {
+                throw new CodecException("unsupported primitive: " + p.getTypeName());
+            }
+        }
+
+        //strings are written as a reference to an already known string, or as 0 followed by the new string
+        void writeString(String s) {
+            Integer index = DICTIONARY_INDEX.get(s);
+            if (index == null && strings != null)
+                index = strings.get(s);
+            if (index != null) {
+                writeVarint(index + 1);
+                return;
+            }
+
+            if (strings == null)
+                strings = new HashMap<String, Integer>();
+            strings.put(s, DICTIONARY.length + strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(0);
+            writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void writeVarint(int value) {
+            writeVarlong(value & 0xffffffffL);
+        }
+
+        void writeVarlong(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int)((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int)value);
+        }
+
+        void writeFixed32(int value) {
+            for (int i = 0; i < 4; i++) {
+                out.write(value & 0xff);
+                value >>>= 8;
+            }
+        }
+
+        void writeFixed64(long value) {
+            for (int i = 0; i < 8; i++) {
+                out.write((int)(value & 0xff));
+                value >>>= 8;
+            }
+        }
+
+        static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    //decodes the descriptors of one message
+    static class Reader {
+
+        byte[] in;
+        int pos = 0;
+        //the strings of this message which are not in the dictionary
+        ArrayList<String> strings = new ArrayList<String>();
+
+        Reader(byte[] in) {
+            this.in = in;
+        }
+
+        AbsObject readObject() throws CodecException {
+
+            int kind = readByte();
+
+            switch (kind) {
+                case PRIMITIVE_STRING:
+                    return AbsPrimitive.wrap(readString());
+                case PRIMITIVE_INT:
+                    return AbsPrimitive.wrap((int)unzigzag(readVarlong()));
+                case PRIMITIVE_LONG:
+                    return AbsPrimitive.wrap(unzigzag(readVarlong()));
+                case PRIMITIVE_DOUBLE:
+                    return AbsPrimitive.wrap(Double.longBitsToDouble(readFixed64()));
+                case PRIMITIVE_WHOLE_DOUBLE:
+                    return AbsPrimitive.wrap((double)unzigzag(readVarlong()));
+                case PRIMITIVE_FLOAT:
+                    return AbsPrimitive.wrap(Float.intBitsToFloat(readFixed32()));
+                case PRIMITIVE_BOOLEAN:
+                    return AbsPrimitive.wrap(readByte() != 0);
+                case PRIMITIVE_DATE:
+                    return AbsPrimitive.wrap(new Date(unzigzag(readVarlong())));
+                case PRIMITIVE_BYTES: {
+                    int length = readVarint();
+                    checkAvailable(length);
+                    byte[] bytes = new byte[length];
+                    System.arraycopy(in, pos, bytes, 0, length);
+                    pos += length;
+                    return AbsPrimitive.wrap(bytes);
+                }
+                case AGGREGATE: {
+                    AbsAggregate agg = new AbsAggregate(readString());
+                    int size = readVarint();
+                    for (int i = 0; i < size; i++)
+                        agg.add((AbsTerm)readObject());
+                    return agg;
+                }
+                case CONTENT_ELEMENT_LIST: {
+                    AbsContentElementList list = new AbsContentElementList();
+                    int size = readVarint();
+                    for (int i = 0; i < size; i++)
+                        list.add((AbsContentElement)readObject());
+                    return list;
+                }
+                case AID: {
+                    readString();
+                    return readSlots(new AbsAID());
+                }
+                case AGENT_ACTION:
+                    return readSlots(new AbsAgentAction(readString()));
+                case CONCEPT:
+                    return readSlots(new AbsConcept(readString()));
+                case PREDICATE:
+                    return readSlots(new AbsPredicate(readString()));
+                default:
+                    throw new CodecException("unknown descriptor kind " + kind + " at " + (pos - 1));
+            }
+        }
+
+        AbsObject readSlots(AbsObject abs) throws CodecException {
+            int count = readVarint();
+            for (int i = 0; i < count; i++) {
+                String name = readString();
+                AbsObject value = readObject();
+                try {
+                    AbsHelper.setAttribute(abs, name, value);
+                } catch (OntologyException e) {
+                    throw new CodecException("cannot set slot " + name + " of " + abs.getTypeName(), e);
+                }
+            }
+            return abs;
+        }
+
+        String readString() throws CodecException {
+            int ref = readVarint();
+            if (ref > 0) {
+                if (ref <= DICTIONARY.length)
+                    return DICTIONARY[ref - 1];
+                if (ref > DICTIONARY.length + strings.size())
+                    throw new CodecException("unknown string reference " + ref);
+                return strings.get(ref - 1 - DICTIONARY.length);
+            }
+
+            int length = readVarint();
+            checkAvailable(length);
+            String s = new String(in, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            strings.add(s);
+            return s;
+        }
+
+        int readByte() throws CodecException {
+            checkAvailable(1);
+            return in[pos++] & 0xff;
+        }
+
+        int readVarint() throws CodecException {
+            return (int)readVarlong();
+        }
+
+        long readVarlong() throws CodecException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new CodecException("malformed number at " + pos);
+        }
+
+        int readFixed32() throws CodecException {
+            checkAvailable(4);
+            int value = 0;
+            for (int i = 0; i < 4; i++)
+                value |= (in[pos++] & 0xff) << (8 * i);
+            return value;
+        }
+
+        long readFixed64() throws CodecException {
+            checkAvailable(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++)
+                value |= (long)(in[pos++] & 0xff) << (8 * i);
+            return value;
+        }
+
+        void checkAvailable(int length) throws CodecException {
+            if (length < 0 || pos + length > in.length)
+                throw new CodecException("unexpected end of content at " + pos);
+        }
+
+        static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
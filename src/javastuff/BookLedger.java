@@ -0,0 +1,566 @@
+package javastuff;
+
+import javastuff.onto.AgentInfo;
+import javastuff.onto.BookInfo;
+import javastuff.onto.Goal;
+import javastuff.onto.MakeTransaction;
+import javastuff.onto.PositionDelta;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ledger of the environment -- books, goals and money of all agents.
+ *
+ * Books are indexed by their ID (to find the owner) and by the owner and book name, so the ownership checks and
+ * transfers do not scan the lists of books. AgentInfo is only a view which is built on demand. The utility of every
+ * agent and the number of its goals it has the books for are updated with the transfers, so they are not recomputed
+ * from the lists of books and goals. The ledger also keeps the index of the holders of the books by their names, so the
+ * traders can send their CFPs only to the agents who have the books.
+ *
+ * With several environment shards, the side of a transaction which belongs to another shard is first reserved there
+ * (the books and the money cannot be used by other transactions) and applied only when the transaction is committed.
+ *
+ * The transactions of different agents may be applied concurrently (SettlementEngine), the caller must hold the locks
+ * of the agents whose accounts it reads or changes. The maps shared by all the agents are concurrent. The agents are
+ * added and the reservations are made only by the agent thread, before the trading or with a single engine thread.
+ * Every change of an account publishes a new immutable Snapshot, which is read without any locks.
+ */
+public class BookLedger {
+
+    //account of a single agent
+    static class Account {
+
+        String name;
+        //number of the agent in the holder index
+        int index;
+        //owned books by their ID (keeps the order in which the books were received)
+        LinkedHashMap<Integer, BookInfo> books = new LinkedHashMap<Integer, BookInfo>();
+        //number of owned books with the given name
+        HashMap<String, Integer> bookNames = new HashMap<String, Integer>();
+        ArrayList<Goal> goals;
+        double money;
+        //number of transactions applied to the account
+        int sequence;
+        //money reserved by the prepared transactions
+        double reservedMoney;
+        //value and number of the goals by the book names
+        HashMap<String, Double> goalValues = new HashMap<String, Double>();
+        HashMap<String, Integer> goalCounts = new HashMap<String, Integer>();
+        //value and number of the goals for which the agent has the book, updated with the books
+        double goalUtility;
+        int goalsMet;
+        //the last published view of the account
+        volatile Snapshot snapshot;
+
+        Account(String name) {
+            this.name = name;
+        }
+
+        void setGoals(ArrayList<Goal> goals) {
+            this.goals = goals;
+            for (Goal g : goals) {
+                goalValues.merge(g.getBook().getBookName(), g.getValue(), Double::sum);
+                goalCounts.merge(g.getBook().getBookName(), 1, Integer::sum);
+            }
+        }
+
+        void addBook(BookInfo bi) {
+            books.put(bi.getBookID(), bi);
+            if (bookNames.merge(bi.getBookName(), 1, Integer::sum) == 1 && goalCounts.containsKey(bi.getBookName())) {
+                goalUtility += goalValues.get(bi.getBookName());
+                goalsMet += goalCounts.get(bi.getBookName());
+            }
+        }
+
+        BookInfo removeBook(int bookID) {
+            BookInfo bi = books.remove(bookID);
+            if (bi == null)
+                return null;
+
+            int count = bookNames.get(bi.getBookName());
+            if (count == 1) {
+                bookNames.remove(bi.getBookName());
+                if (goalCounts.containsKey(bi.getBookName())) {
+                    goalUtility -= goalValues.get(bi.getBookName());
+                    goalsMet -= goalCounts.get(bi.getBookName());
+                }
+            } else
+                bookNames.put(bi.getBookName(), count - 1);
+
+            return bi;
+        }
+
+        //publishes the current state as a new snapshot
+        void publish() {
+            AgentInfo ai = new AgentInfo();
+            ai.setBooks(new ArrayList<BookInfo>(books.values()));
+            ai.setGoals(goals);
+            ai.setMoney(money);
+            ai.setSequence(sequence);
+            snapshot = new Snapshot(ai);
+        }
+    }
+
+    /**
+     * The state of an agent after one of its transactions -- it is never changed, the next transaction publishes a new
+     * one. The version is the sequence number of the account. The environment keeps the encoded content of its answer
+     * to GetMyInfo with the snapshot, so the same version is encoded only once.
+     */
+    public static class Snapshot {
+
+        AgentInfo info;
+        //the encoded answers in the string and in the binary language, set by the agent thread of the environment when
+        //first sent
+        String content;
+        byte[] byteContent;
+
+        Snapshot(AgentInfo info) {
+            this.info = info;
+        }
+
+        /**
+         * Returns the state of the agent, it must not be changed
+         */
+        public AgentInfo getInfo() {
+            return info;
+        }
+
+        public int getVersion() {
+            return info.getSequence();
+        }
+    }
+
+    //owner of each book by the book ID
+    ConcurrentHashMap<Integer, Account> owners = new ConcurrentHashMap<Integer, Account>();
+    //accounts of the agents by their names
+    LinkedHashMap<String, Account> accounts = new LinkedHashMap<String, Account>();
+    //names of the agents by their numbers and the numbers of the agents who have a book with the name
+    ArrayList<String> agentNames = new ArrayList<String>();
+    //(the bit sets are changed and read only when synchronized on them)
+    ConcurrentHashMap<String, BitSet> holders = new ConcurrentHashMap<String, BitSet>();
+    //changes with every change of the holders (and with every new agent)
+    AtomicLong holdersVersion = new AtomicLong();
+
+    //one side of a prepared transaction (the lists are never null)
+    static class Reservation {
+        String agentName;
+        ArrayList<BookInfo> booksOut;
+        ArrayList<BookInfo> booksIn;
+        double moneyOut;
+        double moneyIn;
+    }
+
+    //all the changes of the positions are written here first, if set
+    LedgerJournal journal;
+
+    //prepared transactions by their IDs
+    HashMap<String, Reservation> reservations = new HashMap<String, Reservation>();
+    //reserved books by their IDs (and the transactions which reserved them)
+    HashMap<Integer, String> reservedBooks = new HashMap<Integer, String>();
+
+    /**
+     * Adds the agent with its initial books, goals and money to the ledger
+     */
+    public void addAgent(String agentName, AgentInfo ai) {
+
+        Account acc = new Account(agentName);
+        acc.index = agentNames.size();
+        acc.setGoals(ai.getGoals());
+        acc.money = ai.getMoney();
+        acc.sequence = ai.getSequence();
+
+        for (BookInfo bi : ai.getBooks()) {
+            acc.addBook(bi);
+            owners.put(bi.getBookID(), acc);
+            setHolder(bi.getBookName(), acc.index, true);
+        }
+        acc.publish();
+
+        accounts.put(agentName, acc);
+        agentNames.add(agentName);
+        holdersVersion.incrementAndGet();
+    }
+
+    public boolean hasAgent(String agentName) {
+        return accounts.containsKey(agentName);
+    }
+
+    public Set<String> getAgents() {
+        return accounts.keySet();
+    }
+
+    /**
+     * Returns the name of the owner of the book, or null if nobody owns it
+     */
+    public String getOwner(int bookID) {
+        Account acc = owners.get(bookID);
+        return acc == null ? null : acc.name;
+    }
+
+    public boolean owns(String agentName, int bookID) {
+        Account acc = owners.get(bookID);
+        return acc != null && acc.name.equals(agentName);
+    }
+
+    /**
+     * Returns the number of books with the given name the agent owns
+     */
+    public int countBooks(String agentName, String bookName) {
+        Account acc = accounts.get(agentName);
+        if (acc == null)
+            return 0;
+        Integer count = acc.bookNames.get(bookName);
+        return count == null ? 0 : count;
+    }
+
+    public double getMoney(String agentName) {
+        return accounts.get(agentName).money;
+    }
+
+    /**
+     * Returns the money of the agent which is not reserved by prepared transactions
+     */
+    public double getAvailableMoney(String agentName) {
+        Account acc = accounts.get(agentName);
+        return acc.money - acc.reservedMoney;
+    }
+
+    /**
+     * Returns the names of the agents by their numbers in the holder index
+     */
+    public List<String> getAgentNames() {
+        return agentNames;
+    }
+
+    /**
+     * Returns the numbers of the agents who have a book with the name by the book names (must not be changed, the bit
+     * sets are read when synchronized on them)
+     */
+    public Map<String, BitSet> getHolders() {
+        return holders;
+    }
+
+    /**
+     * Returns a number which changes whenever the holders change
+     */
+    public long getHoldersVersion() {
+        return holdersVersion.get();
+    }
+
+    void setHolder(String bookName, int index, boolean holds) {
+        BitSet h = holders.computeIfAbsent(bookName, k -> new BitSet());
+        synchronized (h) {
+            if (h.get(index) == holds)
+                return;
+            h.set(index, holds);
+        }
+        holdersVersion.incrementAndGet();
+    }
+
+    /**
+     * Returns the utility of the agent -- its money and the values of the goals it has the books for (the same as
+     * Utils.computeUtility, but kept up to date with the transfers)
+     */
+    public double getUtility(String agentName) {
+        Account acc = accounts.get(agentName);
+        return acc.money + acc.goalUtility;
+    }
+
+    /**
+     * Checks the agent has the books for all its goals (the same as Utils.hasAllBooks)
+     */
+    public boolean hasAllGoals(String agentName) {
+        Account acc = accounts.get(agentName);
+        return acc.goalsMet == acc.goals.size();
+    }
+
+    /**
+     * Returns the names of at most k agents with the highest utility, the best first
+     */
+    public ArrayList<String> getLeaderboard(int k) {
+
+        Comparator<Account> byUtility = Comparator.comparingDouble(acc -> acc.money + acc.goalUtility);
+
+        //the k best accounts, the worst of them at the head
+        PriorityQueue<Account> best = new PriorityQueue<Account>(Math.max(Math.min(k, accounts.size()), 1), byUtility);
+        for (Account acc : accounts.values()) {
+            if (best.size() < k)
+                best.add(acc);
+            else if (k > 0 && byUtility.compare(acc, best.peek()) > 0) {
+                best.poll();
+                best.add(acc);
+            }
+        }
+
+        ArrayList<String> names = new ArrayList<String>(best.size());
+        while (!best.isEmpty())
+            names.add(best.poll().name);
+        Collections.reverse(names);
+        return names;
+    }
+
+    /**
+     * Builds the AgentInfo view of the agent, or returns null if the agent is not known
+     */
+    public AgentInfo getAgentInfo(String agentName) {
+
+        Account acc = accounts.get(agentName);
+        if (acc == null)
+            return null;
+
+        AgentInfo ai = new AgentInfo();
+        ai.setBooks(new ArrayList<BookInfo>(acc.books.values()));
+        ai.setGoals(acc.goals);
+        ai.setMoney(acc.money);
+        ai.setSequence(acc.sequence);
+        return ai;
+    }
+
+    /**
+     * Returns the last published snapshot of the agent, or null if the agent is not known. The snapshot is read without
+     * locks, while the account may be changed.
+     */
+    public Snapshot getSnapshot(String agentName) {
+        Account acc = accounts.get(agentName);
+        return acc == null ? null : acc.snapshot;
+    }
+
+    /**
+     * Finds the books the agent wants to send but does not own (or they are reserved by a prepared transaction)
+     */
+    public ArrayList<BookInfo> getMissingBooks(String agentName, List<BookInfo> books) {
+        ArrayList<BookInfo> missing = new ArrayList<BookInfo>();
+        for (BookInfo bi : books) {
+            if (!owns(agentName, bi.getBookID()) || reservedBooks.containsKey(bi.getBookID()))
+                missing.add(bi);
+        }
+        return missing;
+    }
+
+    /**
+     * Checks that the two halves of a transaction match and that both agents can fulfill them
+     *
+     * @return the reason of the failure, or null if the transaction can be applied
+     */
+    public String validate(MakeTransaction sendOrder1, MakeTransaction sendOrder2) {
+
+        String failure = validateMatch(sendOrder1, sendOrder2);
+        if (failure == null)
+            failure = validateSide(sendOrder1.getSenderName(), sendOrder1.getSendingBooks(), sendOrder1.getSendingMoney());
+        if (failure == null)
+            failure = validateSide(sendOrder2.getSenderName(), sendOrder2.getSendingBooks(), sendOrder2.getSendingMoney());
+        return failure;
+    }
+
+    /**
+     * Checks that the two halves of a transaction match (does not need the accounts of the agents)
+     *
+     * @return the reason of the failure, or null if the halves match
+     */
+    public static String validateMatch(MakeTransaction sendOrder1, MakeTransaction sendOrder2) {
+
+        //check the senders and receiver match
+        if (!sendOrder1.getReceiverName().equals(sendOrder2.getSenderName()) ||
+                !sendOrder1.getSenderName().equals(sendOrder2.getReceiverName())) {
+            return "sender and receiver do not match";
+        }
+
+        //a book can be sent only once
+        if (findDuplicate(sendOrder1.getSendingBooks()) != null || findDuplicate(sendOrder2.getSendingBooks()) != null)
+            return "orders list a book twice";
+
+        //check the list of sent and expected books match
+        if (sendOrder1.getSendingBooks().size() != sendOrder2.getReceivingBooks().size())
+            return "orders do not match";
+
+        if (sendOrder1.getReceivingBooks().size() != sendOrder2.getSendingBooks().size())
+            return "orders do not match";
+
+        for (int i = 0; i < sendOrder1.getSendingBooks().size(); i++) {
+            if (sendOrder1.getSendingBooks().get(i).getBookID() != sendOrder2.getReceivingBooks().get(i).getBookID())
+                return "orders do not match";
+        }
+
+        for (int i = 0; i < sendOrder2.getSendingBooks().size(); i++) {
+            if (sendOrder2.getSendingBooks().get(i).getBookID() != sendOrder1.getReceivingBooks().get(i).getBookID())
+                return "orders do not match";
+        }
+
+        //check the amount of money matches
+        if (sendOrder1.getSendingMoney() != sendOrder2.getReceivingMoney())
+            return "orders do not match";
+
+        if (sendOrder1.getReceivingMoney() != sendOrder2.getSendingMoney())
+            return "orders do not match";
+
+        return null;
+    }
+
+    /**
+     * Checks the agent has all the books it wants to send and enough money
+     *
+     * @return the reason of the failure, or null if the agent can send them
+     */
+    public String validateSide(String agentName, List<BookInfo> booksOut, double moneyOut) {
+
+        if (!hasAgent(agentName))
+            return agentName + " not found";
+
+        BookInfo duplicate = findDuplicate(booksOut);
+        if (duplicate != null)
+            return agentName + " sends the book " + duplicate.getBookID() + " twice";
+
+        ArrayList<BookInfo> missingBooks = getMissingBooks(agentName, booksOut);
+        if (missingBooks.size() > 0)
+            return agentName + " does not have " + missingBooks;
+
+        if (getAvailableMoney(agentName) < moneyOut)
+            return agentName + " does not have enough money";
+
+        return null;
+    }
+
+    /**
+     * Checks and reserves one side of a transaction -- the books and the money cannot be used by other transactions
+     * until the transaction is committed or released
+     *
+     * @return the reason of the failure, or null if the side was reserved
+     */
+    public String reserve(String transferID, String agentName, ArrayList<BookInfo> booksOut, ArrayList<BookInfo> booksIn,
+                          double moneyOut, double moneyIn) {
+
+        if (reservations.containsKey(transferID))
+            return "transaction " + transferID + " already prepared";
+
+        //the empty sides are decoded as null
+        booksOut = orEmpty(booksOut);
+        booksIn = orEmpty(booksIn);
+
+        String failure = validateSide(agentName, booksOut, moneyOut);
+        if (failure != null)
+            return failure;
+
+        Reservation r = new Reservation();
+        r.agentName = agentName;
+        r.booksOut = booksOut;
+        r.booksIn = booksIn;
+        r.moneyOut = moneyOut;
+        r.moneyIn = moneyIn;
+        reservations.put(transferID, r);
+
+        for (BookInfo bi : booksOut)
+            reservedBooks.put(bi.getBookID(), transferID);
+        accounts.get(agentName).reservedMoney += moneyOut;
+
+        return null;
+    }
+
+    /**
+     * Applies the reserved side of a transaction
+     *
+     * @return the change of the position of the agent, or null if the transaction is not prepared
+     */
+    public PositionDelta commit(String transferID) {
+        Reservation r = release(transferID);
+        if (r == null)
+            return null;
+        return update(r.agentName, r.booksOut, r.booksIn, r.moneyIn - r.moneyOut);
+    }
+
+    /**
+     * Releases the books and the money reserved by the transaction
+     *
+     * @return the released reservation, or null if the transaction is not prepared
+     */
+    public Reservation release(String transferID) {
+        Reservation r = reservations.remove(transferID);
+        if (r == null)
+            return null;
+
+        for (BookInfo bi : r.booksOut)
+            reservedBooks.remove(bi.getBookID(), transferID);
+        accounts.get(r.agentName).reservedMoney -= r.moneyOut;
+
+        return r;
+    }
+
+    /**
+     * Applies a validated transaction -- moves the books and the money between the agents
+     *
+     * @return the changes of the positions of the sender of the first and of the second order
+     */
+    public PositionDelta[] apply(MakeTransaction sendOrder1, MakeTransaction sendOrder2) {
+
+        PositionDelta delta1 = update(sendOrder1.getSenderName(), sendOrder1.getSendingBooks(), sendOrder2.getSendingBooks(),
+                sendOrder2.getSendingMoney() - sendOrder1.getSendingMoney());
+        PositionDelta delta2 = update(sendOrder2.getSenderName(), sendOrder2.getSendingBooks(), sendOrder1.getSendingBooks(),
+                sendOrder1.getSendingMoney() - sendOrder2.getSendingMoney());
+
+        return new PositionDelta[] {delta1, delta2};
+    }
+
+    /**
+     * Changes the position of a single agent -- removes the books it sends, adds the books it receives and changes its
+     * money
+     */
+    public PositionDelta update(String agentName, ArrayList<BookInfo> booksOut, ArrayList<BookInfo> booksIn, double moneyChange) {
+
+        Account acc = accounts.get(agentName);
+        booksOut = orEmpty(booksOut);
+        booksIn = orEmpty(booksIn);
+
+        if (journal != null)
+            journal.update(agentName, booksOut, booksIn, moneyChange);
+
+        for (BookInfo bi : booksOut) {
+            BookInfo removed = acc.removeBook(bi.getBookID());
+            //the book may already belong to the other side of the transaction
+            owners.remove(bi.getBookID(), acc);
+            //the last book with the name
+            if (removed != null && !acc.bookNames.containsKey(removed.getBookName()))
+                setHolder(removed.getBookName(), acc.index, false);
+        }
+
+        for (BookInfo bi : booksIn) {
+            acc.addBook(bi);
+            owners.put(bi.getBookID(), acc);
+            setHolder(bi.getBookName(), acc.index, true);
+        }
+
+        acc.money += moneyChange;
+        acc.sequence++;
+        acc.publish();
+
+        PositionDelta delta = new PositionDelta();
+        delta.setBooksOut(booksOut);
+        delta.setBooksIn(booksIn);
+        delta.setMoneyChange(moneyChange);
+        delta.setSequence(acc.sequence);
+        return delta;
+    }
+
+    //the first book listed twice, or null
+    static BookInfo findDuplicate(List<BookInfo> books) {
+        HashSet<Integer> ids = new HashSet<Integer>();
+        for (BookInfo bi : books)
+            if (!ids.add(bi.getBookID()))
+                return bi;
+        return null;
+    }
+
+    static ArrayList<BookInfo> orEmpty(ArrayList<BookInfo> books) {
+        return books == null ? new ArrayList<BookInfo>() : books;
+    }
+}
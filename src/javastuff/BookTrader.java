@@ -3,6 +3,7 @@ package javastuff;
 import javastuff.BookTraderLogic;
 import javastuff.onto.*;
 import jade.content.ContentElement;
+import jade.content.ContentManager;
 import jade.content.lang.Codec;
 import jade.content.lang.sl.SLCodec;
 import jade.content.onto.Ontology;
@@ -10,8 +11,10 @@ import jade.content.onto.OntologyException;
 import jade.content.onto.UngroundedException;
 import jade.content.onto.basic.Action;
 import jade.content.onto.basic.Result;
+import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.Behaviour;
+import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.TickerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.*;
@@ -22,40 +25,162 @@ import jade.lang.acl.MessageTemplate;
 import jade.proto.*;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 /**
  * Created by Martin Pilat on 16.4.14.
  *
  * A simple (testing) version of the trading agent. The agent does not trade in any reasonable way, it only ensures it
- * does not sell bosks it does not own (but it can still happed from time to time if two agents asks for the same book
- * at the same time).
+ * does not sell bosks it does not own. The books offered to a buyer (and the books and money of an accepted offer) are
+ * reserved until the trade is settled, so they are not promised to two agents at the same time.
  *
  * Added logic to the trader
  */
-public class BookTrader extends Agent {
+public class BookTrader extends Agent implements TraderState {
 
     Codec codec = new SLCodec();
+    //compact language used with the agents which support it
+    Codec binaryCodec = new BookCodec();
     Ontology onto = BookOntology.getInstance();
 
     ArrayList<BookInfo> myBooks;
     ArrayList<Goal> myGoal;
     double myMoney;
+    //sequence number of the last transaction included in our information
+    int mySequence;
+    //we got the StartTrading already
+    boolean trading = false;
 
     //logic of the book trader
     BookTraderLogic logic = new BookTraderLogic(this);
 
+    //other traders and the environment
+    DirectoryCache directory = new DirectoryCache(this);
+    //environment shards, if there are more of them
+    ShardRing shardRing;
+
+    //orders waiting for the next batch to each environment, sent every batchPeriod ms (argument batchSettlement=ms),
+    //the orders are sent one by one if it is 0
+    long batchPeriod = 0;
+    LinkedHashMap<AID, ArrayList<MakeTransaction>> pendingOrders = new LinkedHashMap<AID, ArrayList<MakeTransaction>>();
+
+    //the CFPs are sent only to the likely holders of the books, the holder index is refreshed every holderIndexPeriod
+    //ms (argument holderIndex=ms), the CFPs are sent to all the traders if it is 0
+    long holderIndexPeriod = 0;
+    HolderDirectory holders = new HolderDirectory();
+
+    //a round of buying starts every TRADING_PERIOD ms, with the argument adaptiveTrading=rounds at most the given number
+    //of rounds wait for the answers and the period adapts to the answers (up to MAX_TRADING_PERIOD)
+    static final long TRADING_PERIOD = 50;
+    static final long MAX_TRADING_PERIOD = 1000;
+    TradingScheduler scheduler = new TradingScheduler(TRADING_PERIOD, TRADING_PERIOD, Integer.MAX_VALUE);
+    TickerBehaviour tradingBehaviour;
+
+    //books and money promised in the trades which are not settled yet
+    InventoryReservations reservations = new InventoryReservations();
+    //how long the books stay reserved for a proposal and for the settlement of an accepted trade
+    static final long PROPOSAL_LEASE = 2000;
+    static final long SETTLEMENT_LEASE = 6000;
+
+    //the rate of the trading and the rounds (JMX)
+    Metrics metrics = new Metrics();
+
+    //the holder index is not used if it was not refreshed for this many periods
+    static final int HOLDER_INDEX_MAX_AGE = 3;
+
+    //evaluates the proposals in parallel if set (argument parallelOffers=threads)
+    ForkJoinPool offerPool;
+    //the quotes are posted this often in the order book mode
+    static final long QUOTE_PERIOD = 250;
+    //fewer proposals are evaluated in the agent thread
+    static final int PARALLEL_MIN_PROPOSALS = 16;
+    //the content manager of the agent is not thread safe, each thread of the pool decodes with its own
+    //the repeated requests are encoded and the messages of the contract net rounds are decoded only once
+    ContentCache contentCache;
+    ThreadLocal<ContentManager> offerContentManager = ThreadLocal.withInitial(() -> {
+        ContentManager cm = new ContentManager();
+        cm.registerLanguage(new SLCodec());
+        cm.registerLanguage(new BookCodec());
+        cm.registerOntology(onto);
+        return cm;
+    });
+
+    @Override
+    public ArrayList<BookInfo> getMyBooks() {
+        return myBooks;
+    }
+
+    @Override
+    public ArrayList<Goal> getMyGoals() {
+        return myGoal;
+    }
+
+    @Override
+    public double getMyMoney() {
+        return myMoney;
+    }
+
+    @Override
+    public boolean isReserved(int bookID) {
+        return reservations.isReserved(bookID);
+    }
+
+    @Override
+    public double getReservedMoney() {
+        return reservations.getReservedMoney();
+    }
+
     @Override
     protected void setup() {
         super.setup();
 
+        HashMap<String, String> args = Utils.parseArguments(getArguments());
+
+        //the trading logic can run on a faster clock (for load tests), the timeouts of the messages stay real
+        if (args.containsKey("timeScale"))
+            logic.setClock(new ScaledClock(Double.parseDouble(args.get("timeScale"))));
+
+        if (args.containsKey("batchSettlement"))
+            batchPeriod = Long.parseLong(args.get("batchSettlement"));
+
+        if (args.containsKey("adaptiveTrading"))
+            scheduler = new TradingScheduler(TRADING_PERIOD, MAX_TRADING_PERIOD, Integer.parseInt(args.get("adaptiveTrading")));
+
+        metrics.gauge("trading.period-ms", () -> scheduler.getPeriod());
+        metrics.gauge("trading.rounds-per-minute", () -> 60000 / scheduler.getPeriod());
+        metrics.gauge("trading.in-flight", () -> scheduler.getInFlight());
+        metrics.gauge("trading.reservations", () -> reservations.size());
+        metrics.gauge("directory.hits", () -> directory.getHits());
+        metrics.gauge("directory.misses", () -> directory.getMisses());
+        metrics.register(getLocalName());
+
+        if (args.containsKey("holderIndex"))
+            holderIndexPeriod = Long.parseLong(args.get("holderIndex"));
+
+        if (args.containsKey("parallelOffers"))
+            offerPool = new ForkJoinPool(Integer.parseInt(args.get("parallelOffers")));
+
+        if (args.containsKey("counterpartyPricing")) {
+            logic.setCounterpartyPricing(Boolean.parseBoolean(args.get("counterpartyPricing")));
+            metrics.gauge("trading.counterparties", () -> logic.buyers.size() + logic.sellers.size());
+            metrics.gauge("trading.evicted-counterparties",
+                    () -> logic.buyers.getEvictions() + logic.sellers.getEvictions());
+        }
+
         //register the codec and the ontology with the content manager
         this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerLanguage(binaryCodec);
         this.getContentManager().registerOntology(onto);
+        contentCache = new ContentCache(getContentManager(), metrics);
 
-        //book-trader service description
+        //book-trader service description, the languages tell the others how they can talk to us
         ServiceDescription sd = new ServiceDescription();
         sd.setType("book-trader");
         sd.setName("book-trader");
+        sd.addLanguages(binaryCodec.getName());
+        sd.addLanguages(codec.getName());
 
         //description of this agent and the services it provides
         DFAgentDescription dfd = new DFAgentDescription();
@@ -69,13 +194,28 @@ public class BookTrader extends Agent {
             e.printStackTrace();
         }
 
+        //keep the other traders and the environment up to date
+        directory.subscribe("book-trader");
+        directory.subscribe("environment");
+
         //add behavior which waits for the StartTrading message
         addBehaviour(new StartTradingBehaviour(this, MessageTemplate.MatchPerformative(ACLMessage.REQUEST)));
+
+        //release the reservations of the trades nobody finished
+        addBehaviour(new ReservationExpiryBehaviour(this, InventoryReservations.LEASE_TICK));
+
+        if (batchPeriod > 0) {
+            addBehaviour(new OrderBatchBehaviour(this, batchPeriod));
+            addBehaviour(new BatchSettlementBehaviour());
+        }
     }
 
     @Override
     protected void takeDown() {
         super.takeDown();
+        metrics.unregister();
+        if (offerPool != null)
+            offerPool.shutdown();
         try {
             DFService.deregister(this);
         } catch (FIPAException e) {
@@ -83,6 +223,366 @@ public class BookTrader extends Agent {
         }
     }
 
+    //chooses the language for a message -- the binary one if all the receivers understand it, SL otherwise
+    String languageFor(String serviceType, Collection<AID> receivers) throws FIPAException {
+        if (directory.allSpeak(serviceType, receivers, binaryCodec.getName()))
+            return binaryCodec.getName();
+        return codec.getName();
+    }
+
+    /**
+     * Finds the best offer of each proposal (null if we do not want any of them).
+     *
+     * With many proposals and the offer pool set, the proposals are decoded and evaluated in parallel against the
+     * current price model, which is then updated with all the offers in the order of the proposals -- the result does
+     * not depend on the scheduling of the threads. Without the pool, each proposal updates the model before the next
+     * one is evaluated.
+     */
+    List<BookTraderLogic.OfferInfo> chooseOffers(List<ACLMessage> proposals) throws Codec.CodecException, OntologyException {
+
+        ArrayList<BookTraderLogic.OfferInfo> best = new ArrayList<BookTraderLogic.OfferInfo>();
+
+        if (offerPool == null || proposals.size() < PARALLEL_MIN_PROPOSALS) {
+            for (ACLMessage proposal : proposals)
+                best.add(logic.chooseOffer((ChooseFrom)contentCache.extractContent(proposal), proposal));
+            return best;
+        }
+
+        long elapsed = logic.elapsed();
+        List<BookTraderLogic.Evaluation> evaluations;
+        try {
+            evaluations = offerPool.submit(() -> proposals.parallelStream()
+                    .map(proposal -> evaluate(proposal, elapsed))
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException | ExecutionException e) {
+            //reject all of them
+            e.printStackTrace();
+            for (int i = 0; i < proposals.size(); i++)
+                best.add(null);
+            return best;
+        }
+
+        for (int i = 0; i < evaluations.size(); i++) {
+            BookTraderLogic.Evaluation e = evaluations.get(i);
+            if (e == null) {
+                best.add(null);
+                continue;
+            }
+            //the accepted proposal is not decoded again
+            contentCache.remember(proposals.get(i), e.cf);
+            logic.observe(e, elapsed);
+            best.add(e.best);
+        }
+        return best;
+    }
+
+    //runs in the offer pool, a proposal which cannot be decoded is rejected
+    BookTraderLogic.Evaluation evaluate(ACLMessage proposal, long elapsed) {
+        try {
+            ChooseFrom cf = (ChooseFrom)offerContentManager.get().extractContent(proposal);
+            return logic.evaluate(cf, proposal, elapsed);
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    //the environment shard which has our information
+    AID homeEnvironment() throws FIPAException {
+        ShardRing ring = shardRing();
+        if (ring == null)
+            return directory.getProvider("environment");
+        return directory.getProvider("environment", "shard", String.valueOf(ring.shardOf(getName())));
+    }
+
+    //the environment shard which settles our trades with the other agent
+    AID environmentFor(String otherAgent) throws FIPAException {
+        ShardRing ring = shardRing();
+        if (ring == null)
+            return directory.getProvider("environment");
+        return directory.getProvider("environment", "shard", String.valueOf(ring.coordinatorOf(getName(), otherAgent)));
+    }
+
+    //the assignment of the agents to the environment shards, null if there is a single environment
+    ShardRing shardRing() throws FIPAException {
+        String shards = directory.getProperty("environment", "shards");
+        if (shards == null)
+            return null;
+        if (shardRing == null || shardRing.getShards() != Integer.parseInt(shards))
+            shardRing = new ShardRing(Integer.parseInt(shards));
+        return shardRing;
+    }
+
+    //asks the environment for all our information (books, goals, money)
+    void refreshMyInfo() throws FIPAException, Codec.CodecException, OntologyException {
+
+        AID env = homeEnvironment();
+
+        ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
+        getMyInfo.setLanguage(languageFor("environment", Collections.singletonList(env)));
+        getMyInfo.setOntology(onto.getName());
+
+        getMyInfo.addReceiver(env);
+        contentCache.fillContent(getMyInfo, new Action(env, new GetMyInfo()), "GetMyInfo " + env.getName());
+
+        ACLMessage myInfo = FIPAService.doFipaRequestClient(this, getMyInfo);
+
+        Result res = (Result)getContentManager().extractContent(myInfo);
+
+        AgentInfo ai = (AgentInfo)res.getValue();
+
+        myBooks = ai.getBooks();
+        myGoal = ai.getGoals();
+        myMoney = ai.getMoney();
+        mySequence = ai.getSequence();
+    }
+
+    //applies the change of our position the environment sent after a transaction
+    void applyDelta(PositionDelta delta) {
+
+        if (delta.getBooksOut() != null) {
+            HashSet<Integer> sent = new HashSet<Integer>();
+            for (BookInfo bi : delta.getBooksOut())
+                sent.add(bi.getBookID());
+            myBooks.removeIf(bi -> sent.contains(bi.getBookID()));
+        }
+
+        if (delta.getBooksIn() != null)
+            myBooks.addAll(delta.getBooksIn());
+
+        myMoney += delta.getMoneyChange();
+        mySequence = delta.getSequence();
+    }
+
+    //processes the answer of the environment to our order
+    void handleSettlement(ACLMessage inform) {
+
+        try {
+            PositionDelta delta = (PositionDelta)getContentManager().extractContent(inform);
+
+            //apply the change locally, ask for all the information only if we missed some transaction
+            if (delta.getSequence() == mySequence + 1)
+                applyDelta(delta);
+            else if (delta.getSequence() > mySequence + 1)
+                refreshMyInfo();
+
+            //update logic variables after the settlement
+            logic.updateLogic();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //sends the orders collected since the last tick, one message to each environment
+    class OrderBatchBehaviour extends TickerBehaviour {
+
+        public OrderBatchBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+
+            for (Map.Entry<AID, ArrayList<MakeTransaction>> e : pendingOrders.entrySet()) {
+                AID env = e.getKey();
+
+                MakeTransactions batch = new MakeTransactions();
+                batch.setOrders(e.getValue());
+
+                try {
+                    ACLMessage batchReq = new ACLMessage(ACLMessage.REQUEST);
+                    batchReq.addReceiver(env);
+                    batchReq.setLanguage(languageFor("environment", Collections.singletonList(env)));
+                    batchReq.setOntology(onto.getName());
+
+                    getContentManager().fillContent(batchReq, new Action(env, batch));
+                    send(batchReq);
+                } catch (Codec.CodecException ex) {
+                    ex.printStackTrace();
+                } catch (OntologyException ex) {
+                    ex.printStackTrace();
+                } catch (FIPAException ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            pendingOrders.clear();
+        }
+    }
+
+    //receives the answers to the orders sent in batches
+    class BatchSettlementBehaviour extends CyclicBehaviour {
+
+        MessageTemplate template = MessageTemplate.MatchProtocol(MakeTransactions.PROTOCOL);
+
+        @Override
+        public void action() {
+
+            ACLMessage received = myAgent.receive(template);
+
+            if (received == null) {
+                block();
+                return;
+            }
+
+            //the failed orders do not change anything
+            if (received.getPerformative() == ACLMessage.INFORM)
+                handleSettlement(received);
+
+            //the trade is over, the books were sent or can be sold again
+            String tradeID = received.getConversationId();
+            if (tradeID != null && tradeID.startsWith(MakeTransactions.PROTOCOL + "-"))
+                reservations.release(tradeID.substring(MakeTransactions.PROTOCOL.length() + 1));
+        }
+    }
+
+    //releases the reservations with expired leases
+    class ReservationExpiryBehaviour extends TickerBehaviour {
+
+        public ReservationExpiryBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+            int expired = reservations.expire(System.currentTimeMillis());
+            if (expired > 0)
+                metrics.counter("trading.expired-reservations").add(expired);
+        }
+    }
+
+    //replaces our orders in the order book of the environment with new quotes
+    class QuoteBehaviour extends TickerBehaviour {
+
+        public QuoteBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+
+            PostQuotes pq = new PostQuotes();
+            pq.setOrders(logic.proposeQuotes());
+
+            try {
+                AID env = homeEnvironment();
+
+                ACLMessage quotes = new ACLMessage(ACLMessage.REQUEST);
+                quotes.addReceiver(env);
+                quotes.setLanguage(languageFor("environment", Collections.singletonList(env)));
+                quotes.setOntology(onto.getName());
+                quotes.setProtocol(PostQuotes.PROTOCOL);
+
+                getContentManager().fillContent(quotes, new Action(env, pq));
+                send(quotes);
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            } catch (FIPAException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //receives the fills of our orders
+    class FillBehaviour extends CyclicBehaviour {
+
+        MessageTemplate template = MessageTemplate.MatchProtocol(PostQuotes.PROTOCOL);
+
+        @Override
+        public void action() {
+
+            ACLMessage received = myAgent.receive(template);
+
+            if (received == null) {
+                block();
+                return;
+            }
+
+            if (received.getPerformative() != ACLMessage.INFORM)
+                return;
+
+            //the price of the book moves our average
+            try {
+                PositionDelta delta = (PositionDelta)getContentManager().extractContent(received);
+                ArrayList<BookInfo> traded = delta.getBooksIn() != null && !delta.getBooksIn().isEmpty() ?
+                        delta.getBooksIn() : delta.getBooksOut();
+                if (traded != null && !traded.isEmpty())
+                    logic.observeFill(traded.get(0).getBookName(), Math.abs(delta.getMoneyChange()));
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+
+            handleSettlement(received);
+        }
+    }
+
+    //asks all the environments for the holders of the books
+    class HolderIndexBehaviour extends TickerBehaviour {
+
+        public HolderIndexBehaviour(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+
+            try {
+                for (AID env : directory.getProviders("environment")) {
+                    GetHolderIndex ghi = new GetHolderIndex();
+                    ghi.setKnownAgents(holders.knownAgents(env));
+
+                    ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+                    request.addReceiver(env);
+                    request.setLanguage(languageFor("environment", Collections.singletonList(env)));
+                    request.setOntology(onto.getName());
+                    request.setReplyByDate(new Date(System.currentTimeMillis() + getPeriod()));
+
+                    contentCache.fillContent(request, new Action(env, ghi),
+                            "GetHolderIndex " + env.getName() + " " + ghi.getKnownAgents());
+                    addBehaviour(new HolderIndexInitiator(myAgent, request, env));
+                }
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            } catch (FIPAException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    class HolderIndexInitiator extends AchieveREInitiator {
+
+        AID env;
+
+        public HolderIndexInitiator(Agent a, ACLMessage request, AID env) {
+            super(a, request);
+            this.env = env;
+        }
+
+        @Override
+        protected void handleInform(ACLMessage inform) {
+            try {
+                Result res = (Result)getContentManager().extractContent(inform);
+                holders.update(env, (HolderIndex)res.getValue(), System.currentTimeMillis());
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     // waits for the StartTrading message and adds the trading behavior
     class StartTradingBehaviour extends AchieveREResponder {
 
@@ -103,42 +603,43 @@ public class BookTrader extends Agent {
                 Action a = (Action)ce;
 
 
+                //the environment restarted, our position may have changed meanwhile
+                if (a.getAction() instanceof StartTrading && trading) {
+                    refreshMyInfo();
+                    logic.updateLogic();
+
+                    ACLMessage reply = request.createReply();
+                    reply.setPerformative(ACLMessage.INFORM);
+                    return reply;
+                }
+
                 //we got the request to start trading
                 if (a.getAction() instanceof StartTrading) {
+                    trading = true;
 
                     //find out what our goals are
-                    ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
-                    getMyInfo.setLanguage(codec.getName());
-                    getMyInfo.setOntology(onto.getName());
-
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
-
-                    getMyInfo.addReceiver(envs[0].getName());
-                    getContentManager().fillContent(getMyInfo, new Action(envs[0].getName(), new GetMyInfo()));
-
-                    ACLMessage myInfo = FIPAService.doFipaRequestClient(myAgent, getMyInfo);
-
-                    Result res = (Result)getContentManager().extractContent(myInfo);
-
-                    AgentInfo ai = (AgentInfo)res.getValue();
-
-                    myBooks = ai.getBooks();
-                    myGoal = ai.getGoals();
-                    myMoney = ai.getMoney();
+                    refreshMyInfo();
 
                     //start the logic
                     logic.startTrading();
 
-                    //add a behavior which tries to buy a book every 50ms
-                    addBehaviour(new TradingBehaviour(myAgent, 50));
-
-                    //add a behavior which sells book to other agents
-                    addBehaviour(new SellBook(myAgent, MessageTemplate.MatchPerformative(ACLMessage.CFP)));
+                    if (PostQuotes.PROTOCOL.equals(directory.getProperty("environment", "market"))) {
+                        //post the quotes to the order book of the environment and wait for the fills, the quotes
+                        //need to know which goals we do not have yet
+                        logic.updateLogic();
+                        addBehaviour(new QuoteBehaviour(myAgent, QUOTE_PERIOD));
+                        addBehaviour(new FillBehaviour());
+                    } else {
+                        //add a behavior which tries to buy a book every 50ms (or as often as the scheduler says)
+                        tradingBehaviour = new TradingBehaviour(myAgent, scheduler.getPeriod());
+                        addBehaviour(tradingBehaviour);
+
+                        //add a behavior which sells book to other agents
+                        addBehaviour(new SellBook(myAgent, MessageTemplate.MatchPerformative(ACLMessage.CFP)));
+
+                        if (holderIndexPeriod > 0)
+                            addBehaviour(new HolderIndexBehaviour(myAgent, holderIndexPeriod));
+                    }
 
                     //reply that we are able to start trading (the message is ignored by the environment)
                     ACLMessage reply = request.createReply();
@@ -171,39 +672,62 @@ public class BookTrader extends Agent {
             @Override
             protected void onTick() {
 
+                //too many rounds wait for the answers
+                if (!scheduler.tryStart()) {
+                    metrics.counter("trading.skipped").increment();
+                    return;
+                }
+
                 try {
 
-                    //find other seller and prepare a CFP
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("book-trader");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
+                    //create proposals
+                    ArrayList<BookInfo> proposedBooks = logic.proposePurchase();
 
-                    DFAgentDescription[] traders = DFService.search(myAgent, dfd);
+                    //the agents who probably have the books, null if we do not know
+                    HashSet<String> likely = null;
+                    if (holderIndexPeriod > 0)
+                        likely = holders.holdersOfAll(directory.getProviders("environment"), proposedBooks,
+                                System.currentTimeMillis(), HOLDER_INDEX_MAX_AGE * holderIndexPeriod);
 
+                    //find other seller and prepare a CFP
                     ACLMessage buyBook = new ACLMessage(ACLMessage.CFP);
-                    buyBook.setLanguage(codec.getName());
                     buyBook.setOntology(onto.getName());
                     buyBook.setReplyByDate(new Date(System.currentTimeMillis()+1000));
 
-                    for (DFAgentDescription dfad : traders) {
-                        if (dfad.getName().equals(myAgent.getAID()))
+                    ArrayList<AID> sellers = new ArrayList<AID>();
+                    for (AID trader : directory.getProviders("book-trader")) {
+                        if (trader.equals(myAgent.getAID()))
+                            continue;
+                        if (likely != null && !likely.contains(trader.getName()))
                             continue;
-                        buyBook.addReceiver(dfad.getName());
+                        buyBook.addReceiver(trader);
+                        sellers.add(trader);
                     }
 
-                    //create proposals
-                    ArrayList<BookInfo> proposedBooks = logic.proposePurchase();
+                    //nobody has all the books
+                    if (sellers.isEmpty()) {
+                        scheduler.cancel();
+                        return;
+                    }
+                    buyBook.setLanguage(languageFor("book-trader", sellers));
                     SellMeBooks smb = new SellMeBooks();
                     smb.setBooks(proposedBooks);
 
-                    getContentManager().fillContent(buyBook, new Action(myAgent.getAID(), smb));
-                    addBehaviour(new ObtainBook(myAgent, buyBook));
+                    //the proposed books are in the order of their numbers, the same books give the same key
+                    StringBuilder key = new StringBuilder("SellMeBooks");
+                    for (BookInfo bi : proposedBooks)
+                        key.append(' ').append(bi.getBookName()).append('#').append(bi.getBookID());
+                    contentCache.fillContent(buyBook, new Action(myAgent.getAID(), smb), key.toString());
+                    addBehaviour(new ObtainBook(myAgent, buyBook, sellers.size()));
+                    metrics.counter("trading.rounds").increment();
                 } catch (Codec.CodecException e) {
+                    scheduler.cancel();
                     e.printStackTrace();
                 } catch (OntologyException e) {
+                    scheduler.cancel();
                     e.printStackTrace();
                 } catch (FIPAException e) {
+                    scheduler.cancel();
                     e.printStackTrace();
                 }
 
@@ -213,8 +737,30 @@ public class BookTrader extends Agent {
         //this behavior takes care of the buying of the book itself
         class ObtainBook extends ContractNetInitiator {
 
-            public ObtainBook(Agent a, ACLMessage cfp) {
+            public ObtainBook(Agent a, ACLMessage cfp, int asked) {
                 super(a, cfp);
+                this.asked = asked;
+            }
+
+            //the answers to the CFP, they tell the scheduler how busy the others are
+            int asked;
+            int answered;
+            int refused;
+            boolean accepted;
+            //the conversation of the trade, the promised books are reserved under it
+            String tradeID;
+            boolean orderSent = false;
+
+            @Override
+            public int onEnd() {
+                if (accepted)
+                    metrics.counter("trading.accepted").increment();
+                //the seller did not confirm, our books and money are free again
+                if (tradeID != null && !orderSent)
+                    reservations.release(tradeID);
+                if (scheduler.finished(asked, answered, refused, accepted))
+                    tradingBehaviour.reset(scheduler.getPeriod());
+                return super.onEnd();
             }
 
             Chosen c;  //we need to remember what offer we have chosen
@@ -246,21 +792,11 @@ public class BookTrader extends Agent {
                     mt.setReceivingBooks(shouldReceive);
                     mt.setReceivingMoney(0.0);
 
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
-
-                    ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
-                    transReq.addReceiver(envs[0].getName());
-                    transReq.setLanguage(codec.getName());
-                    transReq.setOntology(onto.getName());
-                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + 1000));
+                    AID env = environmentFor(mt.getReceiverName());
 
-                    getContentManager().fillContent(transReq, new Action(envs[0].getName(), mt));
-                    addBehaviour(new SendBook(myAgent, transReq));
+                    sendOrder(env, mt);
+                    orderSent = true;
+                    reservations.extend(mt.getTradeConversationID(), SETTLEMENT_LEASE);
 
                     //update logic variables on purchase
                     logic.updateLogic();
@@ -283,74 +819,34 @@ public class BookTrader extends Agent {
             @Override
             protected void handleAllResponses(Vector responses, Vector acceptances) {
 
-                Iterator it = responses.iterator();
-
                 BookTraderLogic.OfferInfo currentBest = null;
 
                 try {
-                while (it.hasNext()) {
-                    ACLMessage response = (ACLMessage) it.next();
-
-                    ContentElement ce = null;
-
-                    if (response.getPerformative() == ACLMessage.REFUSE) {
-                        continue;
-                    }
-
-                    ce = getContentManager().extractContent(response);
-
-                    ChooseFrom cf = (ChooseFrom) ce;
-
-                    Offer weWant = new Offer();
-                    weWant.setBooks(cf.getWillSell());
-                    weWant.setMoney(0.0);
-
-                    ArrayList<Offer> offers = cf.getOffers();
+                //the proposals in the order they came
+                ArrayList<ACLMessage> proposals = new ArrayList<ACLMessage>();
+                for (Object o : responses) {
+                    ACLMessage response = (ACLMessage) o;
+                    if (response.getPerformative() != ACLMessage.REFUSE)
+                        proposals.add(response);
+                }
+                answered = responses.size();
+                refused = responses.size() - proposals.size();
 
-                    //find out which offers we can fulfill (we have all requested books and enough money)
-                    ArrayList<BookTraderLogic.OfferInfo> canFulfill = new ArrayList<>();
-                    for (Offer o : offers) {
-                        if (o.getMoney() > myMoney)
-                            continue;
+                //find the best offer from each proposal we can fulfill and want
+                List<BookTraderLogic.OfferInfo> offers = chooseOffers(proposals);
 
-                        boolean foundAll = true;
-                        if (o.getBooks() != null)
-                            for (BookInfo bi : o.getBooks()) {
-                                String bn = bi.getBookName();
-                                boolean found = false;
-                                for (int j = 0; j < myBooks.size(); j++) {
-                                    if (myBooks.get(j).getBookName().equals(bn)) {
-                                        found = true;
-                                        bi.setBookID(myBooks.get(j).getBookID());
-                                        break;
-                                    }
-                                }
-                                if (!found) {
-                                    foundAll = false;
-                                    break;
-                                }
-                            }
-
-                        if (foundAll) {
-                            //compute offers value
-                            double value = logic.acceptTrade(o,weWant);
-                            //we can fulfill either way but we dont want to
-                            if (value >= 1)
-                                canFulfill.add(logic.new OfferInfo(o,value,response));
-                        }
-                    }
+                for (int i = 0; i < proposals.size(); i++) {
+                    ACLMessage response = proposals.get(i);
+                    BookTraderLogic.OfferInfo max = offers.get(i);
 
                     //if none, we REJECT the proposal
-                    if (canFulfill.size() == 0) {
+                    if (max == null) {
                         ACLMessage acc = response.createReply();
                         acc.setPerformative(ACLMessage.REJECT_PROPOSAL);
                         acceptances.add(acc);
                     }
                     //there are some possible offers, find the best
                     else {
-                        //find the best offer from this proposal
-                        BookTraderLogic.OfferInfo max = canFulfill.stream().max(Comparator.comparing((BookTraderLogic.OfferInfo x) -> x.value)).get();
-
                         //the first one
                         if (currentBest == null) {
                             currentBest = max;
@@ -371,6 +867,19 @@ public class BookTrader extends Agent {
                         }
                     }
                 }
+                //the books and money of the best offer are ours until the trade is settled
+                if (currentBest != null) {
+                    tradeID = currentBest.response.getConversationId();
+                    if (!reservations.reserve(tradeID, currentBest.offer.getBooks(), currentBest.offer.getMoney(),
+                            PROPOSAL_LEASE + SETTLEMENT_LEASE)) {
+                        ACLMessage acc = currentBest.response.createReply();
+                        acc.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                        acceptances.add(acc);
+                        tradeID = null;
+                        currentBest = null;
+                    }
+                }
+
                 if (currentBest != null)
                 {
                     //we accept the best one
@@ -382,7 +891,8 @@ public class BookTrader extends Agent {
                     ch.setOffer(currentBest.offer);
 
                     c=ch;
-                    shouldReceive = ((ChooseFrom)getContentManager().extractContent(currentBest.response)).getWillSell();
+                    accepted = true;
+                    shouldReceive = ((ChooseFrom)contentCache.extractContent(currentBest.response)).getWillSell();
 
                     getContentManager().fillContent(acc, ch);
                     acceptances.add(acc);
@@ -424,27 +934,17 @@ public class BookTrader extends Agent {
 
                     SellMeBooks smb = (SellMeBooks)ac.getAction();
                     ArrayList<BookInfo> books = smb.getBooks();
-                    ArrayList<BookInfo> sellBooks = new ArrayList<BookInfo>();
 
                     if (books == null)
                         throw new RefuseException("");
 
-                    //find out, if we have books the agent wants
-                    for (int i = 0; i < books.size(); i++) {
-                        boolean found = false;
-                        for (int j = 0; j < myBooks.size(); j++) {
-                            if (myBooks.get(j).getBookName().equals(books.get(i).getBookName())) {
-                                sellBooks.add(myBooks.get(j));
-                                found = true;
-                                break;
-                            }
-                        }
-                        if (!found)
-                            throw new RefuseException("");
-                    }
+                    //find out, if we have books the agent wants (and did not promise them to somebody else)
+                    ArrayList<BookInfo> sellBooks = logic.findOwnBooks(books);
+                    if (sellBooks == null || !reservations.reserve(cfp.getConversationId(), sellBooks, 0, PROPOSAL_LEASE))
+                        throw new RefuseException("");
 
                     //propose books to sell
-                    ArrayList<Offer> proposedSale = logic.proposeSale(sellBooks);
+                    ArrayList<Offer> proposedSale = logic.proposeSale(sellBooks, cfp.getSender().getName());
 
                     ChooseFrom cf = new ChooseFrom();
 
@@ -456,6 +956,8 @@ public class BookTrader extends Agent {
                     reply.setPerformative(ACLMessage.PROPOSE);
                     reply.setReplyByDate(new Date(System.currentTimeMillis() + 1000));
                     getContentManager().fillContent(reply, cf);
+                    //the proposal comes back with the acceptance
+                    contentCache.remember(reply, cf);
 
                     return reply;
                 } catch (UngroundedException e) {
@@ -466,14 +968,31 @@ public class BookTrader extends Agent {
                     e.printStackTrace();
                 }
 
+                reservations.release(cfp.getConversationId());
                 throw new FailureException("");
             }
+
+            //the buyer does not want our books
+            @Override
+            protected void handleRejectProposal(ACLMessage cfp, ACLMessage propose, ACLMessage reject) {
+                reservations.release(cfp.getConversationId());
+                try {
+                    ChooseFrom cf = (ChooseFrom)contentCache.extractContent(propose);
+                    logic.observeAnswer(cfp.getSender().getName(), cf.getWillSell(), cf.getOffers(), false);
+                } catch (Codec.CodecException e) {
+                    e.printStackTrace();
+                } catch (OntologyException e) {
+                    e.printStackTrace();
+                }
+            }
+
             //the buyer decided to accept an offer
             @Override
             protected ACLMessage handleAcceptProposal(ACLMessage cfp, ACLMessage propose, ACLMessage accept) throws FailureException {
 
                 try {
-                    ChooseFrom cf = (ChooseFrom)getContentManager().extractContent(propose);
+                    ChooseFrom cf = (ChooseFrom)contentCache.extractContent(propose);
+                    logic.observeAnswer(cfp.getSender().getName(), cf.getWillSell(), cf.getOffers(), true);
 
                     //prepare the transaction info and send it to the environment
                     MakeTransaction mt = new MakeTransaction();
@@ -498,22 +1017,10 @@ public class BookTrader extends Agent {
                     mt.setReceivingBooks(c.getOffer().getBooks());
                     mt.setReceivingMoney(c.getOffer().getMoney());
 
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
-
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
-
-                    ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
-                    transReq.addReceiver(envs[0].getName());
-                    transReq.setLanguage(codec.getName());
-                    transReq.setOntology(onto.getName());
-                    transReq.setReplyByDate(new Date(System.currentTimeMillis() + 1000));
-
-                    getContentManager().fillContent(transReq, new Action(envs[0].getName(), mt));
+                    AID env = environmentFor(mt.getReceiverName());
 
-                    addBehaviour(new SendBook(myAgent, transReq));
+                    sendOrder(env, mt);
+                    reservations.extend(mt.getTradeConversationID(), SETTLEMENT_LEASE);
 
                     //update logic variables on sale
                     logic.updateLogic();
@@ -532,52 +1039,50 @@ public class BookTrader extends Agent {
                     e.printStackTrace();
                 }
 
+                reservations.release(cfp.getConversationId());
                 throw new FailureException("");
             }
         }
 
-        //after the transaction is complete (the environment returned an INFORM), we update our information
-        class SendBook extends AchieveREInitiator {
+        //sends the order to the environment, or keeps it for the next batch
+        void sendOrder(AID env, MakeTransaction mt) throws Codec.CodecException, OntologyException, FIPAException {
 
-            public SendBook(Agent a, ACLMessage msg) {
-                super(a, msg);
+            if (batchPeriod > 0) {
+                pendingOrders.computeIfAbsent(env, k -> new ArrayList<MakeTransaction>()).add(mt);
+                return;
             }
 
-            @Override
-            protected void handleInform(ACLMessage inform) {
-
-                try {
-                    ACLMessage getMyInfo = new ACLMessage(ACLMessage.REQUEST);
-                    getMyInfo.setLanguage(codec.getName());
-                    getMyInfo.setOntology(onto.getName());
-
-                    ServiceDescription sd = new ServiceDescription();
-                    sd.setType("environment");
-                    DFAgentDescription dfd = new DFAgentDescription();
-                    dfd.addServices(sd);
+            ACLMessage transReq = new ACLMessage(ACLMessage.REQUEST);
+            transReq.addReceiver(env);
+            transReq.setLanguage(languageFor("environment", Collections.singletonList(env)));
+            transReq.setOntology(onto.getName());
+            transReq.setReplyByDate(new Date(System.currentTimeMillis() + 1000));
 
-                    DFAgentDescription[] envs = DFService.search(myAgent, dfd);
+            getContentManager().fillContent(transReq, new Action(env, mt));
 
-                    getMyInfo.addReceiver(envs[0].getName());
-                    getContentManager().fillContent(getMyInfo, new Action(envs[0].getName(), new GetMyInfo()));
+            addBehaviour(new SendBook(myAgent, transReq, mt.getTradeConversationID()));
+        }
 
-                    ACLMessage myInfo = FIPAService.doFipaRequestClient(myAgent, getMyInfo);
+        //after the transaction is complete (the environment returned an INFORM), we update our information
+        class SendBook extends AchieveREInitiator {
 
-                    Result res = (Result)getContentManager().extractContent(myInfo);
+            String tradeID;
 
-                    AgentInfo ai = (AgentInfo)res.getValue();
+            public SendBook(Agent a, ACLMessage msg, String tradeID) {
+                super(a, msg);
+                this.tradeID = tradeID;
+            }
 
-                    myBooks = ai.getBooks();
-                    myGoal = ai.getGoals();
-                    myMoney = ai.getMoney();
-                } catch (OntologyException e) {
-                    e.printStackTrace();
-                } catch (FIPAException e) {
-                    e.printStackTrace();
-                } catch (Codec.CodecException e) {
-                    e.printStackTrace();
-                }
+            @Override
+            protected void handleInform(ACLMessage inform) {
+                handleSettlement(inform);
+                reservations.release(tradeID);
+            }
 
+            //the trade failed, the books can be sold again
+            @Override
+            protected void handleFailure(ACLMessage failure) {
+                reservations.release(tradeID);
             }
         }
     }
@@ -2,72 +2,72 @@ package javastuff;
 
 import jade.lang.acl.ACLMessage;
 import javastuff.onto.BookInfo;
+import javastuff.onto.ChooseFrom;
 import javastuff.onto.Goal;
+import javastuff.onto.LimitOrder;
 import javastuff.onto.Offer;
 
 import java.util.*;
 
 public class BookTraderLogic {
-    public class MBookInfo {
-
-        private String bookName;
-        private int bookID;
-
-        MBookInfo(BookInfo book) {
-            this.bookName = book.getBookName();
-            this.bookID = book.getBookID();
-        }
-
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((bookName == null) ? 0 : bookName.hashCode());
-            result = prime * result;
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            MBookInfo other = (MBookInfo) obj;
-            if (bookName == null) {
-                if (other.bookName != null)
-                    return false;
-            } else if (!bookName.equals(other.bookName))
-                return false;
-            return true;
-        }
-    }
 
     public final long USE_AVERAGES_AFTER = 10000;//in ms
     public final long STOP_TRADING_NONGOAL_BOOKS = 150000;//in ms
-    public final long TRADING_DURATION = 180000;//in ms
+    public static final long TRADING_DURATION = 180000;//in ms
     public final double INCREASE_PROPOSAL_SIZE_PROB = 0.4;
     public final double MARGIN = 0.1;
     public final double SMOOTHING_FACTOR = 0.35;
+    //each book asked for in a bundle makes it a little less likely to be accepted (the buyer must have it)
+    public final double BUNDLE_BOOK_COST = 0.1;
+    //time limit of the choice of a bundle, the proposal must be sent well before the reply-by of the CFP (1 s)
+    public final long BUNDLE_BUDGET = 20000000;//in ns
+    //number of the buyers and of the sellers whose prices we remember
+    public final int MAX_COUNTERPARTIES = 128;
 
     long time = 0;
-    BookTrader agent;
+    TraderState agent;
+    Clock clock;
+    Random rnd;
 
     double minBookPrice;
     double maxBookPrice;
     double money;
 
 
+    //the books are identified by their names, every name gets a dense index when it is seen for the first time, all the
+    //information about the books is stored in arrays indexed by it
+    HashMap<String, Integer> bookIndex = new HashMap<>();
+    String[] bookNames = new String[16];
+    //ID of the book with the name we know
+    int[] bookIDs = new int[16];
+
     //exponential moving average
-    HashMap<MBookInfo, Double> priceEma = new HashMap<>();
+    double[] priceEma = new double[16];
+    BitSet hasPriceEma = new BitSet();
+    int priceEmaCount = 0;
     //our goals
-    HashMap<MBookInfo, Double> goals = new HashMap<>();
-    //our books
-    ArrayList<MBookInfo> books = new ArrayList<>();
+    double[] goalValues = new double[16];
+    BitSet goals = new BitSet();
+    //our books (indices of their names and their IDs)
+    int[] books = new int[16];
+    int[] bookIDsOwned = new int[16];
+    int bookCount = 0;
+    //ID of our first book with the name
+    int[] ownedBookIDs = new int[16];
+    BitSet ownedBooks = new BitSet();
     //our non goal books
-    HashSet<MBookInfo> nonGoalBooks = new HashSet<>();
+    BitSet nonGoalBooks = new BitSet();
+    BitSet unmetGoals = new BitSet();
+
+    //the prices the buyers accept and the prices the sellers ask, used only if the trades are priced by the
+    //counterparties
+    CounterpartyModel buyers = new CounterpartyModel(MAX_COUNTERPARTIES);
+    CounterpartyModel sellers = new CounterpartyModel(MAX_COUNTERPARTIES);
+    boolean counterpartyPricing = false;
+
+    //the books the buyer can pay with and their positions in our books
+    BundleOptimizer bundle = new BundleOptimizer();
+    int[] bundleBooks = new int[16];
 
     //offer with its value and matching response
     public class OfferInfo {
@@ -82,27 +82,130 @@ public class BookTraderLogic {
         }
     }
 
-    public BookTraderLogic(BookTrader agent) {
+    public BookTraderLogic(TraderState agent) {
+        this(agent, Clock.SYSTEM, new Random());
+    }
+
+    public BookTraderLogic(TraderState agent, Clock clock, Random rnd) {
         this.agent = agent;
+        this.clock = clock;
+        this.rnd = rnd;
     }
 
     public void startTrading() {
-        time = System.currentTimeMillis();
+        time = clock.currentTimeMillis();
 
         goals.clear();
-        books.clear();
-        money = agent.myMoney;
+        nonGoalBooks.clear();
+        money = agent.getMyMoney();
+
+        //the names of all the books get their indices now, so the evaluation of offers does not need to add them
+        ArrayList<String> names = new ArrayList<>(Constants.getBooknames());
+        Collections.sort(names);
+        for (String name : names)
+            intern(name, -1);
+
+        minBookPrice = Double.POSITIVE_INFINITY;
+        maxBookPrice = Double.NEGATIVE_INFINITY;
+
+        for (Goal g : agent.getMyGoals()) {
+            int b = intern(g.getBook());
+            goals.set(b);
+            goalValues[b] = g.getValue();
+            setPriceEma(b, g.getValue());
+
+            minBookPrice = Math.min(minBookPrice, g.getValue());
+            maxBookPrice = Math.max(maxBookPrice, g.getValue());
+        }
 
-        for (Goal g : agent.myGoal) {
-            goals.put(new MBookInfo(g.getBook()), g.getValue());
-            priceEma.put(new MBookInfo(g.getBook()), g.getValue());
+        loadBooks();
+    }
+
+    /**
+     * Returns the index of the book name, adds the name if it is new
+     */
+    int intern(BookInfo book) {
+        return intern(book.getBookName(), book.getBookID());
+    }
+
+    int intern(String name, int bookID) {
+        Integer b = bookIndex.get(name);
+        if (b != null) {
+            if (bookIDs[b] < 0)
+                bookIDs[b] = bookID;
+            return b;
+        }
+
+        int n = bookIndex.size();
+        if (n == bookNames.length) {
+            bookNames = Arrays.copyOf(bookNames, 2 * n);
+            bookIDs = Arrays.copyOf(bookIDs, 2 * n);
+            priceEma = Arrays.copyOf(priceEma, 2 * n);
+            goalValues = Arrays.copyOf(goalValues, 2 * n);
+            ownedBookIDs = Arrays.copyOf(ownedBookIDs, 2 * n);
         }
 
-        for (BookInfo b : agent.myBooks)
-            books.add(new MBookInfo(b));
+        bookNames[n] = name;
+        bookIDs[n] = bookID;
+        bookIndex.put(name, n);
+        return n;
+    }
+
+    /**
+     * Returns the index of the book name, or -1 if the name is not known (does not change the model)
+     */
+    int indexOf(String name) {
+        Integer b = bookIndex.get(name);
+        return b == null ? -1 : b;
+    }
 
-        minBookPrice = goals.values().stream().min(Double::compareTo).get();
-        maxBookPrice = goals.values().stream().max(Double::compareTo).get();
+    void setPriceEma(int b, double price) {
+        if (!hasPriceEma.get(b)) {
+            hasPriceEma.set(b);
+            priceEmaCount++;
+        }
+        priceEma[b] = price;
+    }
+
+    //copies our books from the agent
+    void loadBooks() {
+        ArrayList<BookInfo> myBooks = agent.getMyBooks();
+
+        if (myBooks.size() > books.length) {
+            books = new int[2 * myBooks.size()];
+            bookIDsOwned = new int[2 * myBooks.size()];
+        }
+
+        bookCount = 0;
+        ownedBooks.clear();
+        for (int i = 0; i < myBooks.size(); i++) {
+            int b = intern(myBooks.get(i));
+            books[bookCount] = b;
+            bookIDsOwned[bookCount] = myBooks.get(i).getBookID();
+            bookCount++;
+
+            if (!ownedBooks.get(b)) {
+                ownedBooks.set(b);
+                ownedBookIDs[b] = myBooks.get(i).getBookID();
+            }
+        }
+    }
+
+    /**
+     * Prices the books for each buyer by the prices it accepted before and accepts the offers of each seller by the
+     * prices it asked before
+     */
+    public void setCounterpartyPricing(boolean counterpartyPricing) {
+        this.counterpartyPricing = counterpartyPricing;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    //time since the start of the trading
+    long elapsed() {
+        return clock.currentTimeMillis() - time;
     }
 
     enum OfferType {
@@ -113,11 +216,11 @@ public class BookTraderLogic {
     /**
      * Computes value of an offer
      */
-    private double computeOfferValue(Offer o, OfferType type) {
+    private double computeOfferValue(Offer o, OfferType type, long elapsed) {
         double p = 0;
-        for (BookInfo b :
-                o.getBooks()) {
-            p += estimateBookUtility(new MBookInfo(b), type == OfferType.SALE ? Mode.OPTIMISTIC : Mode.PESSIMISTIC);
+        ArrayList<BookInfo> books = o.getBooks();
+        for (int i = 0; i < books.size(); i++) {
+            p += estimateBookUtility(intern(books.get(i)), type == OfferType.SALE ? Mode.OPTIMISTIC : Mode.PESSIMISTIC, elapsed);
         }
         if (type == OfferType.PURCHASE)
             return p * (1 - MARGIN);
@@ -135,32 +238,33 @@ public class BookTraderLogic {
 
     public ArrayList<BookInfo> proposePurchase() {
         ArrayList<BookInfo> proposal = new ArrayList<>();
+        long elapsed = elapsed();
 
         int proposalSize = 1;
 
-        for (; proposalSize + 1 < priceEma.size(); ++proposalSize)
-            if (Math.random() > INCREASE_PROPOSAL_SIZE_PROB)
+        for (; proposalSize + 1 < priceEmaCount; ++proposalSize)
+            if (rnd.nextDouble() > INCREASE_PROPOSAL_SIZE_PROB)
                 break;
 
         int i = 0;
-        for (MBookInfo b : priceEma.keySet()) {
-            if (proposedIndex + 1 >= priceEma.size())
+        for (int b = hasPriceEma.nextSetBit(0); b >= 0; b = hasPriceEma.nextSetBit(b + 1)) {
+            if (proposedIndex + 1 >= priceEmaCount)
                 proposedIndex = 0;
 
-            if (i++ < proposedIndex || (!goals.containsKey(b) && Math.random() < 0.5))
+            if (i++ < proposedIndex || (!goals.get(b) && rnd.nextDouble() < 0.5))
                 continue;
             else
-                proposedIndex = (int)(i + Math.random() * priceEma.size()) % priceEma.size();
+                proposedIndex = (int)(i + rnd.nextDouble() * priceEmaCount) % priceEmaCount;
 
             if (proposalSize == 0)
                 break;
 
-            if (System.currentTimeMillis() - time > STOP_TRADING_NONGOAL_BOOKS && !goals.containsKey(b))
+            if (elapsed > STOP_TRADING_NONGOAL_BOOKS && !goals.get(b))
                 continue;
 
             BookInfo info = new BookInfo();
-            info.setBookID(b.bookID);
-            info.setBookName(b.bookName);
+            info.setBookID(bookIDs[b]);
+            info.setBookName(bookNames[b]);
             proposal.add(info);
             --proposalSize;
         }
@@ -179,44 +283,254 @@ public class BookTraderLogic {
      * @return utility; positive good, negative bad
      */
     public double acceptTrade(Offer heWants, Offer weWant) {
-        double hisVal = heWants.getMoney();
+        return acceptTrade(heWants, weWant, elapsed());
+    }
+
+    private double acceptTrade(Offer heWants, Offer weWant, long elapsed) {
+        double hisVal = sumUtility(heWants.getMoney(), heWants.getBooks(), Mode.OPTIMISTIC, elapsed);
+        double ourVal = sumUtility(weWant.getMoney(), weWant.getBooks(), Mode.PESSIMISTIC, elapsed);
+        observeTrade(heWants, weWant, hisVal, ourVal, elapsed);
+        return ourVal / hisVal;
+    }
+
+    //value of the trade for us, does not change the model
+    private double tradeValue(Offer heWants, Offer weWant, long elapsed) {
+        double hisVal = sumUtility(heWants.getMoney(), heWants.getBooks(), Mode.OPTIMISTIC, elapsed);
+        double ourVal = sumUtility(weWant.getMoney(), weWant.getBooks(), Mode.PESSIMISTIC, elapsed);
+        return ourVal / hisVal;
+    }
+
+    //register proposal -- moves the averages of all the books of both sides, the values of the sides are the ones of
+    //tradeValue
+    private void observeTrade(Offer heWants, Offer weWant, double hisVal, double ourVal, long elapsed) {
+        ArrayList<BookInfo> hisBooks = heWants.getBooks();
+        ArrayList<BookInfo> ourBooks = weWant.getBooks();
+
+        //the books without an average start from the last estimate used in the value of the trade
         double price = 0;
-        //register proposal, compute averages
-        if (heWants.getBooks() != null) {
-            for (BookInfo p :
-                    heWants.getBooks()) {
-                price = estimateBookUtility(new MBookInfo(p), Mode.OPTIMISTIC);
-                hisVal += price;
+        if (ourBooks != null && !ourBooks.isEmpty())
+            price = estimateBookUtility(indexOf(ourBooks.get(ourBooks.size() - 1).getBookName()), Mode.PESSIMISTIC, elapsed);
+        else if (hisBooks != null && !hisBooks.isEmpty())
+            price = estimateBookUtility(indexOf(hisBooks.get(hisBooks.size() - 1).getBookName()), Mode.OPTIMISTIC, elapsed);
+
+        double sumMarket = hisVal + ourVal;
+        //all the books of both sides (his books are already in his value)
+        double sumEstimate = sumUtility(hisVal - heWants.getMoney(), ourBooks, Mode.OPTIMISTIC, elapsed);
+
+        if (hisBooks != null)
+            for (int i = 0; i < hisBooks.size(); i++)
+                price = updatePriceEma(intern(hisBooks.get(i)), sumMarket, sumEstimate, price, elapsed);
+        if (ourBooks != null)
+            for (int i = 0; i < ourBooks.size(); i++)
+                price = updatePriceEma(intern(ourBooks.get(i)), sumMarket, sumEstimate, price, elapsed);
+    }
+
+    //adds the utilities of the books to the sum
+    private double sumUtility(double sum, ArrayList<BookInfo> books, Mode mode, long elapsed) {
+        if (books != null)
+            for (int i = 0; i < books.size(); i++)
+                sum += estimateBookUtility(indexOf(books.get(i).getBookName()), mode, elapsed);
+        return sum;
+    }
+
+    //moves the average price of the book towards its share on the value of the trade
+    private double updatePriceEma(int b, double sumMarket, double sumEstimate, double price, long elapsed) {
+        double newVal = sumMarket * estimateBookUtility(b, Mode.OPTIMISTIC, elapsed) / sumEstimate;
+        if (hasPriceEma.get(b))
+            price = SMOOTHING_FACTOR * newVal + (1 - SMOOTHING_FACTOR) * priceEma[b];
+        price = Math.max(price, minBookPrice * 0.1);
+        setPriceEma(b, price);
+        return price;
+    }
+
+    /**
+     * Finds the best offer of the seller we are able to fulfill (we have all requested books and enough money) and we
+     * want to accept
+     *
+     * @param cf       the offers of the seller
+     * @param response the message with the offers
+     * @return the best offer, or null if there is none
+     */
+    public OfferInfo chooseOffer(ChooseFrom cf, ACLMessage response) {
+        return chooseOffer(cf, response, response == null ? null : response.getSender().getName());
+    }
+
+    /**
+     * Finds the best offer of the seller, with the counterparty pricing the offers more expensive than the ones the
+     * seller made before must be worth more to be accepted
+     *
+     * @param seller the name of the seller, null if not known
+     */
+    public OfferInfo chooseOffer(ChooseFrom cf, ACLMessage response, String seller) {
+        return evaluate(cf, response, seller, elapsed(), true).best;
+    }
+
+    //offers of a single response we are able to fulfill, with the best of them
+    public class Evaluation {
+        ChooseFrom cf;
+        String seller;
+        ArrayList<Offer> feasible = new ArrayList<>();
+        public OfferInfo best;
+    }
+
+    /**
+     * Finds the best offer of the response without changing the model, so the responses can be evaluated in parallel
+     * (the model must not change in the meantime). The evaluations are then observed one by one in the order of the
+     * responses.
+     */
+    public Evaluation evaluate(ChooseFrom cf, ACLMessage response, long elapsed) {
+        return evaluate(cf, response, response.getSender().getName(), elapsed, false);
+    }
+
+    //with observe each offer changes the model before the next one is evaluated
+    private Evaluation evaluate(ChooseFrom cf, ACLMessage response, String seller, long elapsed, boolean observe) {
+
+        Evaluation e = new Evaluation();
+        e.cf = cf;
+        e.seller = seller;
+
+        Offer weWant = new Offer();
+        weWant.setBooks(cf.getWillSell());
+        weWant.setMoney(0.0);
+
+        //the money and the books promised in other trades cannot be used
+        double myMoney = agent.getMyMoney() - agent.getReservedMoney();
+
+        for (Offer o : cf.getOffers()) {
+            if (o.getMoney() > myMoney)
+                continue;
+
+            boolean foundAll = true;
+            if (o.getBooks() != null)
+                for (BookInfo bi : o.getBooks()) {
+                    int b = indexOf(bi.getBookName());
+                    int id = b < 0 || !ownedBooks.get(b) ? -1 : freeBookID(b);
+                    if (id < 0) {
+                        foundAll = false;
+                        break;
+                    }
+                    bi.setBookID(id);
+                }
+
+            if (foundAll) {
+                //compute offers value
+                double value;
+                if (observe)
+                    value = acceptTrade(o, weWant, elapsed);
+                else {
+                    value = tradeValue(o, weWant, elapsed);
+                    e.feasible.add(o);
+                }
+                //we can fulfill either way but we dont want to
+                if (value >= acceptThreshold(cf, o, seller, elapsed) && (e.best == null || value > e.best.value))
+                    e.best = new OfferInfo(o, value, response);
             }
         }
 
-        double ourVal = weWant.getMoney();
-        if (weWant.getBooks() != null) {
-            for (BookInfo p :
-                    weWant.getBooks()) {
-                price = estimateBookUtility(new MBookInfo(p), Mode.PESSIMISTIC);
-                ourVal += price;
-            }
+        if (observe)
+            observeAsk(cf, seller, elapsed);
+
+        return e;
+    }
+
+    //the value the offer must have to be accepted -- 1, or more if the seller asks more than it did before (by more
+    //than the margin)
+    private double acceptThreshold(ChooseFrom cf, Offer o, String seller, long elapsed) {
+        if (!counterpartyPricing || seller == null)
+            return 1;
+
+        double asked = 0;
+        for (BookInfo bi : cf.getWillSell()) {
+            double price = sellers.peek(seller, indexOf(bi.getBookName()));
+            if (Double.isNaN(price))
+                return 1;
+            asked += price;
         }
 
-        double sumMarket = hisVal + ourVal;
-        double sumEstimate = 0;
-        ArrayList<BookInfo> union = new ArrayList<>();
-        if (heWants.getBooks() != null)
-            union.addAll(heWants.getBooks());
-        if (weWant.getBooks() != null)
-            union.addAll(weWant.getBooks());
-        for (BookInfo b : union) {
-            sumEstimate += estimateBookUtility(new MBookInfo(b), Mode.OPTIMISTIC);
+        double cost = sumUtility(o.getMoney(), o.getBooks(), Mode.OPTIMISTIC, elapsed);
+        return Math.min(1 + MARGIN, Math.max(1, cost / (asked * (1 + MARGIN))));
+    }
+
+    //registers the price of the offer for money only of the seller, divided among the books by their values
+    private void observeAsk(ChooseFrom cf, String seller, long elapsed) {
+        if (!counterpartyPricing || seller == null || cf.getOffers() == null)
+            return;
+
+        Offer forMoney = null;
+        for (Offer o : cf.getOffers())
+            if (o.getBooks() == null || o.getBooks().isEmpty()) {
+                forMoney = o;
+                break;
+            }
+        if (forMoney == null)
+            return;
+
+        ArrayList<BookInfo> willSell = cf.getWillSell();
+        double sum = 0;
+        for (int i = 0; i < willSell.size(); i++) {
+            int b = indexOf(willSell.get(i).getBookName());
+            if (b >= 0)
+                sum += estimateBookUtility(b, Mode.OPTIMISTIC, elapsed);
         }
-        for (BookInfo b : union) {
-            double newVal = sumMarket * estimateBookUtility(new MBookInfo(b), Mode.OPTIMISTIC) / sumEstimate;
-            if (priceEma.containsKey(new MBookInfo(b)))
-                price = SMOOTHING_FACTOR * newVal + (1 - SMOOTHING_FACTOR) * priceEma.get(new MBookInfo(b));
-            price = Math.max(price, minBookPrice * 0.1);
-            priceEma.put(new MBookInfo(b), price);
+        if (sum <= 0)
+            return;
+
+        for (int i = 0; i < willSell.size(); i++) {
+            int b = indexOf(willSell.get(i).getBookName());
+            if (b >= 0)
+                sellers.observe(seller, b, forMoney.getMoney() * estimateBookUtility(b, Mode.OPTIMISTIC, elapsed) / sum,
+                        SMOOTHING_FACTOR);
         }
-        return ourVal / hisVal;
+    }
+
+    //ID of our book with the name which is not promised in another trade, -1 if there is none
+    private int freeBookID(int b) {
+        if (!agent.isReserved(ownedBookIDs[b]))
+            return ownedBookIDs[b];
+        for (int i = 0; i < bookCount; i++)
+            if (books[i] == b && !agent.isReserved(bookIDsOwned[i]))
+                return bookIDsOwned[i];
+        return -1;
+    }
+
+    /**
+     * Registers the offers of the evaluated response in the price model
+     */
+    public void observe(Evaluation e, long elapsed) {
+        Offer weWant = new Offer();
+        weWant.setBooks(e.cf.getWillSell());
+        weWant.setMoney(0.0);
+
+        for (int i = 0; i < e.feasible.size(); i++)
+            acceptTrade(e.feasible.get(i), weWant, elapsed);
+        observeAsk(e.cf, e.seller, elapsed);
+    }
+
+    /**
+     * Finds our books with the names the buyer wants, the books promised in other trades are not used
+     *
+     * @return the books, or null if we do not have all of them
+     */
+    public ArrayList<BookInfo> findOwnBooks(ArrayList<BookInfo> wanted) {
+        ArrayList<BookInfo> myBooks = agent.getMyBooks();
+        ArrayList<BookInfo> found = new ArrayList<BookInfo>();
+
+        for (int i = 0; i < wanted.size(); i++) {
+            boolean have = false;
+            for (int j = 0; j < myBooks.size(); j++) {
+                if (agent.isReserved(myBooks.get(j).getBookID()))
+                    continue;
+                if (myBooks.get(j).getBookName().equals(wanted.get(i).getBookName())) {
+                    found.add(myBooks.get(j));
+                    have = true;
+                    break;
+                }
+            }
+            if (!have)
+                return null;
+        }
+
+        return found;
     }
 
     /**
@@ -225,52 +539,199 @@ public class BookTraderLogic {
      * @return
      */
     public ArrayList<Offer> proposeSale(ArrayList<BookInfo> wanted) {
+        return proposeSale(wanted, null);
+    }
+
+    /**
+     * Proposes books and prices for sale to the buyer -- with the counterparty pricing, the books the buyer accepted or
+     * rejected before are priced by what it accepts, between the price with a half of the margin and the full margin
+     *
+     * @param buyer the name of the buyer, null if not known
+     */
+    public ArrayList<Offer> proposeSale(ArrayList<BookInfo> wanted, String buyer) {
         ArrayList<Offer> offers = new ArrayList<>();
+        long elapsed = elapsed();
 
         //vsetko za peniaze
         Offer o = new Offer();
         o.setBooks(wanted);
-        o.setMoney(computeOfferValue(o, OfferType.SALE));
+        double p = computeOfferValue(o, OfferType.SALE, elapsed);
+        if (counterpartyPricing && buyer != null)
+            p -= buyerDiscount(wanted, buyer, elapsed);
+        o.setMoney(p);
         o.setBooks(new ArrayList<>());
         offers.add(o);
 
         //vsetko za knihy + peniaze
         o = new Offer();
         o.setBooks(wanted);
-        double p = computeOfferValue(o, OfferType.SALE);
-        ArrayList<BookInfo> bs = new ArrayList<>();
-        for (MBookInfo b : books) {
-            if (p < 0)
-                break;
-            if (Math.random() < 0.3 || wanted.stream().anyMatch(x -> x.getBookName().equals(b.bookName)))
+
+        //a part of the price is paid by the books (by the names of our non goal books), each of them pays what it is
+        //worth to us and the buyer is less likely to accept the books the market values more than we do
+        bundle.clear();
+        BitSet seen = new BitSet();
+        for (int i = 0; i < bookCount; i++) {
+            int b = books[i];
+            if (goals.get(b) || seen.get(b) || isWanted(wanted, b))
                 continue;
-            BookInfo book = new BookInfo();
-            book.setBookName(b.bookName);
-            book.setBookID(b.bookID);
-            bs.add(book);
-            p -= estimateBookUtility(b, Mode.PESSIMISTIC);
+            seen.set(b);
+
+            double ours = estimateBookUtility(b, Mode.PESSIMISTIC, elapsed);
+            double his = marketValue(b, elapsed);
+            int item = bundle.add(ours, (1 - BUNDLE_BOOK_COST) * ours - (his - ours));
+            if (item == bundleBooks.length)
+                bundleBooks = Arrays.copyOf(bundleBooks, 2 * item);
+            bundleBooks[item] = i;
+        }
+
+        //the money is the rest of the price, the same margin as the offer for money only
+        if (p > 0 && bundle.solve(p, BUNDLE_BUDGET) > 0) {
+            ArrayList<BookInfo> bs = new ArrayList<>();
+            for (int item = 0; item < bundle.size(); item++) {
+                if (!bundle.isChosen(item))
+                    continue;
+                int i = bundleBooks[item];
+                BookInfo book = new BookInfo();
+                book.setBookName(bookNames[books[i]]);
+                book.setBookID(bookIDsOwned[i]);
+                bs.add(book);
+                p -= estimateBookUtility(books[i], Mode.PESSIMISTIC, elapsed);
+            }
+            o.setBooks(bs);
+            o.setMoney(Math.max(p, 0));
+            offers.add(o);
         }
-        o.setBooks(bs);
-        if (p > 0)
-            o.setMoney(p);
-        offers.add(o);
 
         return offers;
     }
 
+    //how much less than the full margin the buyer pays for the books
+    private double buyerDiscount(ArrayList<BookInfo> wanted, String buyer, long elapsed) {
+        double discount = 0;
+        for (int i = 0; i < wanted.size(); i++) {
+            int b = indexOf(wanted.get(i).getBookName());
+            double accepted = buyers.peek(buyer, b);
+            if (Double.isNaN(accepted))
+                continue;
+            double ceiling = estimateBookUtility(b, Mode.OPTIMISTIC, elapsed) * (1 + MARGIN);
+            double floor = estimateBookUtility(b, Mode.PESSIMISTIC, elapsed) * (1 + MARGIN / 2);
+            discount += ceiling - Math.max(floor, Math.min(accepted, ceiling));
+        }
+        return discount;
+    }
+
+    /**
+     * Registers the answer of the buyer to our proposal -- the prices of the books for the buyer move above the price of
+     * the offer for money if it accepted one of the offers, below it if it rejected them
+     *
+     * @param sold   the books we proposed
+     * @param offers our offers, the first one for money only
+     */
+    public void observeAnswer(String buyer, List<BookInfo> sold, List<Offer> offers, boolean accepted) {
+        if (!counterpartyPricing || buyer == null || sold == null || offers == null || offers.isEmpty())
+            return;
+
+        long elapsed = elapsed();
+        double sum = 0;
+        for (int i = 0; i < sold.size(); i++) {
+            int b = indexOf(sold.get(i).getBookName());
+            if (b >= 0)
+                sum += estimateBookUtility(b, Mode.OPTIMISTIC, elapsed);
+        }
+        if (sum <= 0)
+            return;
+
+        //the price is divided among the books by their values
+        double price = offers.get(0).getMoney();
+        for (int i = 0; i < sold.size(); i++) {
+            int b = indexOf(sold.get(i).getBookName());
+            if (b < 0)
+                continue;
+            double share = price * estimateBookUtility(b, Mode.OPTIMISTIC, elapsed) / sum;
+            buyers.observe(buyer, b, share * (accepted ? 1 + MARGIN : 1 - MARGIN), SMOOTHING_FACTOR);
+        }
+    }
+
+    //price of the book for the others, the average price without our goals and the discount before the end
+    private double marketValue(int b, long elapsed) {
+        if (elapsed > USE_AVERAGES_AFTER && hasPriceEma.get(b))
+            return priceEma[b];
+        return maxBookPrice;
+    }
+
+    //the buyer wants a book with the name
+    private boolean isWanted(ArrayList<BookInfo> wanted, int b) {
+        for (int i = 0; i < wanted.size(); i++)
+            if (wanted.get(i).getBookName().equals(bookNames[b]))
+                return true;
+        return false;
+    }
+
+    /**
+     * Quotes for the order book -- a bid for each goal we do not have (below its value) and an ask for each book we do
+     * not need (above its pessimistic estimate, we get nothing for it at the end)
+     */
+    public ArrayList<LimitOrder> proposeQuotes() {
+        ArrayList<LimitOrder> quotes = new ArrayList<>();
+        long elapsed = elapsed();
+        double myMoney = agent.getMyMoney();
+
+        for (int b = unmetGoals.nextSetBit(0); b >= 0; b = unmetGoals.nextSetBit(b + 1)) {
+            double price = Math.min(estimateBookUtility(b, Mode.PESSIMISTIC, elapsed) * (1 - MARGIN), myMoney);
+            if (price > 0)
+                quotes.add(quote(b, -1, true, price));
+        }
+
+        //the first book with the name of a goal fulfills it, the others can be sold
+        BitSet kept = new BitSet();
+        for (int i = 0; i < bookCount; i++) {
+            int b = books[i];
+            if (goals.get(b) && !kept.get(b)) {
+                kept.set(b);
+                continue;
+            }
+            quotes.add(quote(b, bookIDsOwned[i], false, estimateBookUtility(b, Mode.PESSIMISTIC, elapsed) * (1 + MARGIN)));
+        }
+
+        return quotes;
+    }
+
+    private LimitOrder quote(int b, int bookID, boolean buy, double price) {
+        BookInfo book = new BookInfo();
+        book.setBookName(bookNames[b]);
+        book.setBookID(bookID);
+
+        LimitOrder lo = new LimitOrder();
+        lo.setBook(book);
+        lo.setBuy(buy);
+        lo.setPrice(price);
+        return lo;
+    }
+
+    /**
+     * Registers the price of a trade in the order book in the average price of the book
+     */
+    public void observeFill(String bookName, double price) {
+        int b = intern(bookName, -1);
+        if (hasPriceEma.get(b))
+            price = SMOOTHING_FACTOR * price + (1 - SMOOTHING_FACTOR) * priceEma[b];
+        setPriceEma(b, Math.max(price, minBookPrice * 0.1));
+    }
+
     void updateLogic() {
-        books.clear();
-        for (BookInfo b : agent.myBooks)
-            books.add(new MBookInfo(b));
-        money = agent.myMoney;
+        loadBooks();
+        money = agent.getMyMoney();
 
+        //the first book with the name of a goal fulfills it, the others are not needed
         nonGoalBooks.clear();
-        HashSet<MBookInfo> goals = new HashSet<>(this.goals.keySet());
-        for (MBookInfo b : books) {
-            if (goals.contains(b))
-                goals.remove(b);
+        unmetGoals.clear();
+        unmetGoals.or(goals);
+        for (int i = 0; i < bookCount; i++) {
+            int b = books[i];
+            if (unmetGoals.get(b))
+                unmetGoals.clear(b);
             else
-                nonGoalBooks.add(b);
+                nonGoalBooks.set(b);
         }
     }
 
@@ -283,28 +744,31 @@ public class BookTraderLogic {
     /**
      * Estimates utility for the book
      *
-     * @param id
+     * @param b index of the book
      * @param mode
+     * @param elapsed time since the start of the trading, read once per decision
      * @return utility
      */
-    private double estimateBookUtility(MBookInfo id, Mode mode) {
-        if (goals.containsKey(id) && !nonGoalBooks.contains(id))
-            return goals.get(id);
+    private double estimateBookUtility(int b, Mode mode, long elapsed) {
+        //a book we have never seen (b < 0) is not a goal and has no average
+        boolean goal = b >= 0 && goals.get(b);
+        if (goal && !nonGoalBooks.get(b))
+            return goalValues[b];
 
         double value = 0;
 
-        if ((System.currentTimeMillis() - time) > USE_AVERAGES_AFTER) {
-            if (priceEma.containsKey(id))
-                value = priceEma.get(id);
+        if (elapsed > USE_AVERAGES_AFTER) {
+            if (b >= 0 && hasPriceEma.get(b))
+                value = priceEma[b];
             else
                 value = mode == Mode.PESSIMISTIC ? minBookPrice : maxBookPrice;
         } else
             value = mode == Mode.PESSIMISTIC ? minBookPrice : maxBookPrice;
 
         //nongoal book discount befor trading end
-        if ((System.currentTimeMillis() - time) > STOP_TRADING_NONGOAL_BOOKS && !goals.containsKey(id))
+        if (elapsed > STOP_TRADING_NONGOAL_BOOKS && !goal)
             return Math.max(
-                    (TRADING_DURATION - (System.currentTimeMillis() - time)) * value / (TRADING_DURATION - STOP_TRADING_NONGOAL_BOOKS),
+                    (TRADING_DURATION - elapsed) * value / (TRADING_DURATION - STOP_TRADING_NONGOAL_BOOKS),
                     minBookPrice * 0.1);
 
         return value;
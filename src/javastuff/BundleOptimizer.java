@@ -0,0 +1,155 @@
+package javastuff;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the books of a bundle -- 0/1 knapsack solved by branch and bound.
+ *
+ * Every item has a weight (the part of the price it pays) and a score (how much the item improves the bundle), the
+ * chosen items maximize the sum of the scores and their weights do not exceed the capacity. The items are searched in
+ * the order of their score per weight, a branch is cut when even the fractional relaxation of the rest cannot beat the
+ * best bundle found. The search stops after the time budget and returns the best bundle found so far (at least the
+ * greedy one).
+ */
+public class BundleOptimizer {
+
+    //the deadline is checked after this many nodes
+    static final int CHECK_NODES = 64;
+
+    int n;
+    double[] weights = new double[16];
+    double[] scores = new double[16];
+    //the items in the order of the search
+    Integer[] order = new Integer[16];
+
+    boolean[] chosen = new boolean[16];
+    boolean[] best = new boolean[16];
+    double bestScore;
+
+    long deadline;
+    int nodes;
+    boolean timedOut;
+
+    /**
+     * Removes all the items
+     */
+    public void clear() {
+        n = 0;
+    }
+
+    /**
+     * Adds an item, the items with no score or weight are never chosen
+     *
+     * @return the number of the item
+     */
+    public int add(double weight, double score) {
+        if (n == weights.length) {
+            weights = Arrays.copyOf(weights, 2 * n);
+            scores = Arrays.copyOf(scores, 2 * n);
+            order = Arrays.copyOf(order, 2 * n);
+            chosen = Arrays.copyOf(chosen, 2 * n);
+            best = Arrays.copyOf(best, 2 * n);
+        }
+        weights[n] = weight;
+        scores[n] = score;
+        return n++;
+    }
+
+    /**
+     * Finds the best bundle within the capacity
+     *
+     * @param budget the time limit of the search in nanoseconds
+     * @return the sum of the scores of the chosen items, see isChosen
+     */
+    public double solve(double capacity, long budget) {
+
+        deadline = System.nanoTime() + budget;
+        nodes = 0;
+        timedOut = false;
+
+        //only the items which can improve the bundle, the best score per weight first
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            best[i] = false;
+            chosen[i] = false;
+            if (scores[i] > 0 && weights[i] > 0 && weights[i] <= capacity)
+                order[m++] = i;
+        }
+        Arrays.sort(order, 0, m, (a, b) -> Double.compare(scores[b] / weights[b], scores[a] / weights[a]));
+
+        //the greedy bundle is the first incumbent
+        bestScore = 0;
+        double left = capacity;
+        for (int k = 0; k < m; k++) {
+            int i = order[k];
+            if (weights[i] <= left) {
+                best[i] = true;
+                bestScore += scores[i];
+                left -= weights[i];
+            }
+        }
+
+        search(0, m, capacity, 0);
+        return bestScore;
+    }
+
+    //tries the item at position k of the order with and without it
+    void search(int k, int m, double left, double score) {
+
+        if (score > bestScore) {
+            bestScore = score;
+            for (int j = 0; j < m; j++)
+                best[order[j]] = chosen[order[j]];
+        }
+
+        if (k == m || timedOut)
+            return;
+
+        if (++nodes % CHECK_NODES == 0 && System.nanoTime() > deadline) {
+            timedOut = true;
+            return;
+        }
+
+        if (score + bound(k, m, left) <= bestScore)
+            return;
+
+        int i = order[k];
+        if (weights[i] <= left) {
+            chosen[i] = true;
+            search(k + 1, m, left - weights[i], score + scores[i]);
+            chosen[i] = false;
+        }
+        search(k + 1, m, left, score);
+    }
+
+    //the best score of the items from position k on if they could be split
+    double bound(int k, int m, double left) {
+        double bound = 0;
+        for (; k < m && left > 0; k++) {
+            int i = order[k];
+            if (weights[i] <= left) {
+                bound += scores[i];
+                left -= weights[i];
+            } else {
+                bound += scores[i] * left / weights[i];
+                left = 0;
+            }
+        }
+        return bound;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public boolean isChosen(int item) {
+        return best[item];
+    }
+
+    /**
+     * Returns true if the last search was stopped by the time budget
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+}
@@ -0,0 +1,12 @@
+package javastuff;
+
+/**
+ * Source of the current time for the trading logic
+ */
+public interface Clock {
+
+    //the wall clock
+    Clock SYSTEM = System::currentTimeMillis;
+
+    long currentTimeMillis();
+}
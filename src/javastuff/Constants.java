@@ -8,12 +8,13 @@ import java.util.Set;
  */
 public class Constants {
 
-    static HashMap<String, Double> bookPrices;
+    //filled on the first use, published only when complete (the simulator uses it from several threads)
+    static volatile HashMap<String, Double> bookPrices;
 
 
     //list of books which can be traded and their default prices
     private static void fillPrices() {
-        bookPrices = new HashMap<String, Double>();
+        HashMap<String, Double> bookPrices = new HashMap<String, Double>();
         bookPrices.put("The Goldfinch", 50.0);
         bookPrices.put("The Rosie Project", 80.0);
         bookPrices.put("Sycamore Row", 120.0);
@@ -21,6 +22,7 @@ public class Constants {
         bookPrices.put("The Husband's Secretes", 90.0);
         bookPrices.put("Grain Brain", 150.0);
         bookPrices.put("Shadow Spell", 40.0);
+        Constants.bookPrices = bookPrices;
     }
 
     public static double getPrice(String bookName) {
@@ -0,0 +1,128 @@
+package javastuff;
+
+import jade.content.ContentElement;
+import jade.content.ContentManager;
+import jade.content.lang.Codec;
+import jade.content.onto.OntologyException;
+import jade.lang.acl.ACLMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the recent results of the content manager of an agent.
+ *
+ * The encoded contents are kept by a key given by the caller (it must tell the elements apart, e.g. the action and its
+ * books) and the language and the ontology of the message, so an element equal to one sent before is not encoded
+ * again. The decoded contents are kept by the message they were extracted from (the same
+ * instance), so a message is decoded only once. Both are bounded, the least recently used entries are dropped.
+ *
+ * The decoded elements are shared by all the callers and must not be changed. Not thread safe, used by the agent
+ * thread only.
+ */
+public class ContentCache {
+
+    static final int ENCODED_CAPACITY = 256;
+    static final int DECODED_CAPACITY = 256;
+
+    //a message as the key by its identity
+    static class MessageKey {
+        ACLMessage msg;
+
+        MessageKey(ACLMessage msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MessageKey && ((MessageKey)o).msg == msg;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(msg);
+        }
+    }
+
+    ContentManager contentManager;
+    Metrics metrics;
+
+    //the encoded contents (String or byte[]) by the keys
+    LinkedHashMap<String, Object> encoded = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > ENCODED_CAPACITY;
+        }
+    };
+    LinkedHashMap<MessageKey, ContentElement> decoded = new LinkedHashMap<MessageKey, ContentElement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<MessageKey, ContentElement> eldest) {
+            return size() > DECODED_CAPACITY;
+        }
+    };
+
+    public ContentCache(ContentManager contentManager, Metrics metrics) {
+        this.contentManager = contentManager;
+        this.metrics = metrics;
+        metrics.gauge("content.encode-hit-rate-pct", () -> hitRate("content.encode-hits", "content.encode-misses"));
+        metrics.gauge("content.decode-hit-rate-pct", () -> hitRate("content.decode-hits", "content.decode-misses"));
+    }
+
+    /**
+     * Fills the content of the message, the same as ContentManager.fillContent
+     *
+     * @param key the same for the equal elements only, null if the element should not be cached
+     */
+    public void fillContent(ACLMessage msg, ContentElement content, String key)
+            throws Codec.CodecException, OntologyException {
+
+        if (key != null)
+            key = msg.getLanguage() + '|' + msg.getOntology() + '|' + key;
+        Object cached = key == null ? null : encoded.get(key);
+        if (cached != null) {
+            metrics.counter("content.encode-hits").increment();
+            if (cached instanceof byte[])
+                msg.setByteSequenceContent((byte[])cached);
+            else
+                msg.setContent((String)cached);
+            return;
+        }
+
+        metrics.counter("content.encode-misses").increment();
+        contentManager.fillContent(msg, content);
+        if (key != null)
+            encoded.put(key, msg.hasByteSequenceContent() ? msg.getByteSequenceContent() : msg.getContent());
+    }
+
+    /**
+     * Extracts the content of the message, the same as ContentManager.extractContent (the returned element must not be
+     * changed)
+     */
+    public ContentElement extractContent(ACLMessage msg) throws Codec.CodecException, OntologyException {
+
+        MessageKey key = new MessageKey(msg);
+        ContentElement ce = decoded.get(key);
+        if (ce != null) {
+            metrics.counter("content.decode-hits").increment();
+            return ce;
+        }
+
+        metrics.counter("content.decode-misses").increment();
+        ce = contentManager.extractContent(msg);
+        decoded.put(key, ce);
+        return ce;
+    }
+
+    /**
+     * Remembers the content of a message which was decoded (or filled) elsewhere
+     */
+    public void remember(ACLMessage msg, ContentElement content) {
+        decoded.put(new MessageKey(msg), content);
+    }
+
+    long hitRate(String hits, String misses) {
+        long h = metrics.counter(hits).sum();
+        long all = h + metrics.counter(misses).sum();
+        return all == 0 ? 0 : 100 * h / all;
+    }
+}
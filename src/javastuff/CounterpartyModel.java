@@ -0,0 +1,94 @@
+package javastuff;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Prices of the books for the other traders -- for every recently active trader and every book the estimate of the
+ * price it accepts.
+ *
+ * The traders get slots, each slot is a row of prices indexed by the books (NaN if the trader did not trade the book
+ * with us yet). The number of the slots is bounded, when they are all used the trader who was observed the longest
+ * time ago loses its slot.
+ */
+public class CounterpartyModel {
+
+    int capacity;
+    HashMap<String, Integer> slots = new HashMap<String, Integer>();
+    String[] names;
+    double[][] prices;
+    //the last observation of the slots, in the observations of the model
+    long[] lastUsed;
+    long uses = 0;
+    int evictions = 0;
+
+    public CounterpartyModel(int capacity) {
+        this.capacity = capacity;
+        names = new String[capacity];
+        prices = new double[capacity][];
+        lastUsed = new long[capacity];
+    }
+
+    /**
+     * Returns the estimated price of the book for the trader, NaN if it is not known. Does not change the model (only
+     * observe marks the trader as used), so it can be called from several threads while the model is not observed.
+     */
+    public double peek(String agentName, int b) {
+        Integer slot = slots.get(agentName);
+        if (slot == null || b < 0 || b >= prices[slot].length)
+            return Double.NaN;
+        return prices[slot][b];
+    }
+
+    /**
+     * Moves the estimated price of the book for the trader towards the price (sets it if it is not known)
+     */
+    public void observe(String agentName, int b, double price, double smoothing) {
+        int slot = slot(agentName);
+        if (b >= prices[slot].length) {
+            int old = prices[slot].length;
+            prices[slot] = Arrays.copyOf(prices[slot], Math.max(2 * old, b + 1));
+            Arrays.fill(prices[slot], old, prices[slot].length, Double.NaN);
+        }
+
+        double last = prices[slot][b];
+        prices[slot][b] = Double.isNaN(last) ? price : smoothing * price + (1 - smoothing) * last;
+    }
+
+    //the slot of the trader, takes the least recently used one if the trader does not have any
+    int slot(String agentName) {
+        Integer slot = slots.get(agentName);
+        if (slot == null) {
+            if (slots.size() < capacity) {
+                slot = slots.size();
+                prices[slot] = new double[16];
+            } else {
+                slot = 0;
+                for (int i = 1; i < capacity; i++)
+                    if (lastUsed[i] < lastUsed[slot])
+                        slot = i;
+                slots.remove(names[slot]);
+                evictions++;
+            }
+            Arrays.fill(prices[slot], Double.NaN);
+            names[slot] = agentName;
+            slots.put(agentName, slot);
+        }
+        lastUsed[slot] = ++uses;
+        return slot;
+    }
+
+    /**
+     * Returns the number of the traders with a slot
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the number of the traders who lost their slots
+     */
+    public int getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,214 @@
+package javastuff;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.SearchConstraints;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.proto.SubscriptionInitiator;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Local cache of the DF -- keeps the agents providing the given service types up to date using the DF subscriptions,
+ * so the agent does not need to search the DF every time it needs to send a message.
+ *
+ * The DF is only searched when the subscription did not deliver the first notification yet.
+ */
+public class DirectoryCache {
+
+    Agent agent;
+
+    //descriptions of the providers of each service type
+    HashMap<String, LinkedHashMap<AID, DFAgentDescription>> providers = new HashMap<String, LinkedHashMap<AID, DFAgentDescription>>();
+    //service types for which the subscription already delivered the registered agents
+    HashMap<String, Boolean> subscribed = new HashMap<String, Boolean>();
+
+    long hits = 0;
+    long misses = 0;
+
+    public DirectoryCache(Agent agent) {
+        this.agent = agent;
+    }
+
+    /**
+     * Subscribes to the changes of the providers of the service type with the DF
+     */
+    public void subscribe(String serviceType) {
+
+        providers.put(serviceType, new LinkedHashMap<AID, DFAgentDescription>());
+        subscribed.put(serviceType, false);
+
+        ACLMessage subscription = DFService.createSubscriptionMessage(agent, agent.getDefaultDF(), template(serviceType), allResults());
+        agent.addBehaviour(new DirectorySubscription(agent, subscription, serviceType));
+    }
+
+    /**
+     * Returns all the agents providing the service
+     */
+    public Collection<AID> getProviders(String serviceType) throws FIPAException {
+        return lookup(serviceType).keySet();
+    }
+
+    /**
+     * Returns one of the agents providing the service, or null if there is no such agent
+     */
+    public AID getProvider(String serviceType) throws FIPAException {
+        LinkedHashMap<AID, DFAgentDescription> found = lookup(serviceType);
+        return found.isEmpty() ? null : found.keySet().iterator().next();
+    }
+
+    /**
+     * Returns the agent providing the service whose description has the property with the value, or null if there is
+     * no such agent
+     */
+    public AID getProvider(String serviceType, String property, String value) throws FIPAException {
+        for (DFAgentDescription dfd : lookup(serviceType).values())
+            if (value.equals(getProperty(dfd, serviceType, property)))
+                return dfd.getName();
+        return null;
+    }
+
+    /**
+     * Returns the value of the property of the service of any of its providers, or null if no provider has it
+     */
+    public String getProperty(String serviceType, String property) throws FIPAException {
+        for (DFAgentDescription dfd : lookup(serviceType).values()) {
+            String value = getProperty(dfd, serviceType, property);
+            if (value != null)
+                return value;
+        }
+        return null;
+    }
+
+    static String getProperty(DFAgentDescription dfd, String serviceType, String property) {
+        Iterator<?> services = dfd.getAllServices();
+        while (services.hasNext()) {
+            ServiceDescription sd = (ServiceDescription)services.next();
+            if (!serviceType.equals(sd.getType()))
+                continue;
+            Iterator<?> properties = sd.getAllProperties();
+            while (properties.hasNext()) {
+                Property p = (Property)properties.next();
+                if (property.equals(p.getName()))
+                    return String.valueOf(p.getValue());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether all the given providers of the service registered the content language with the DF
+     */
+    public boolean allSpeak(String serviceType, Collection<AID> aids, String language) throws FIPAException {
+
+        LinkedHashMap<AID, DFAgentDescription> known = lookup(serviceType);
+
+        for (AID aid : aids) {
+            DFAgentDescription dfd = known.get(aid);
+            if (dfd == null || !speaks(dfd, serviceType, language))
+                return false;
+        }
+        return true;
+    }
+
+    static boolean speaks(DFAgentDescription dfd, String serviceType, String language) {
+        Iterator<?> services = dfd.getAllServices();
+        while (services.hasNext()) {
+            ServiceDescription sd = (ServiceDescription)services.next();
+            if (!serviceType.equals(sd.getType()))
+                continue;
+            Iterator<?> languages = sd.getAllLanguages();
+            while (languages.hasNext())
+                if (language.equals(languages.next()))
+                    return true;
+        }
+        return false;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public String toString() {
+        return "directory cache hits: " + hits + ", misses: " + misses;
+    }
+
+    LinkedHashMap<AID, DFAgentDescription> lookup(String serviceType) throws FIPAException {
+
+        if (subscribed.getOrDefault(serviceType, false)) {
+            hits++;
+            return providers.get(serviceType);
+        }
+
+        //the subscription did not tell us anything yet, ask the DF directly
+        misses++;
+        DFAgentDescription[] found = DFService.search(agent, template(serviceType), allResults());
+
+        LinkedHashMap<AID, DFAgentDescription> result = new LinkedHashMap<AID, DFAgentDescription>();
+        for (DFAgentDescription dfd : found)
+            result.put(dfd.getName(), dfd);
+
+        if (providers.containsKey(serviceType))
+            providers.put(serviceType, result);
+
+        return result;
+    }
+
+    static DFAgentDescription template(String serviceType) {
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(serviceType);
+        DFAgentDescription dfd = new DFAgentDescription();
+        dfd.addServices(sd);
+        return dfd;
+    }
+
+    //the DF returns only a limited number of agents by default
+    static SearchConstraints allResults() {
+        SearchConstraints sc = new SearchConstraints();
+        sc.setMaxResults(-1L);
+        return sc;
+    }
+
+    //processes the notifications from the DF
+    class DirectorySubscription extends SubscriptionInitiator {
+
+        String serviceType;
+
+        public DirectorySubscription(Agent a, ACLMessage msg, String serviceType) {
+            super(a, msg);
+            this.serviceType = serviceType;
+        }
+
+        @Override
+        protected void handleInform(ACLMessage inform) {
+            try {
+                DFAgentDescription[] changed = DFService.decodeNotification(inform.getContent());
+
+                LinkedHashMap<AID, DFAgentDescription> known = providers.get(serviceType);
+                for (DFAgentDescription dfd : changed) {
+                    //deregistered agents are notified without any services
+                    if (dfd.getAllServices().hasNext())
+                        known.put(dfd.getName(), dfd);
+                    else
+                        known.remove(dfd.getName());
+                }
+
+                subscribed.put(serviceType, true);
+            } catch (FIPAException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -8,51 +8,202 @@ import jade.content.onto.Ontology;
 import jade.content.onto.OntologyException;
 import jade.content.onto.basic.Action;
 import jade.content.onto.basic.Result;
+import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
 import jade.core.behaviours.TickerBehaviour;
+import jade.core.behaviours.WakerBehaviour;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAException;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.proto.AchieveREInitiator;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Vector;
 
 /**
  * Created by Martin Pilat on 11.2.14.
  *
  * An implementation of the environment which takes care of the trading between teh agents, send books and stores
  * information about agents.
+ *
+ * The environment can run as several shards (arguments shard=i and shards=N), each of them owns the agents assigned to
+ * it by the ShardRing. The trades are settled by the shard of the agent with the first name; if the other agent
+ * belongs to another shard, its side of the trade is reserved there (PrepareTransfer) and applied once the local side
+ * is applied (CommitTransfer).
+ *
+ * With settlementThreads=N (and a single shard) the trades are settled by the SettlementEngine in its own threads,
+ * the agent thread only decodes the requests and answers GetMyInfo from the snapshots of the ledger (each version of
+ * the snapshot of an agent is encoded only once).
  */
 public class Environment extends Agent {
 
     ArrayList<String> agents = new ArrayList<String>();
-    HashMap<String, AgentInfo> agentBooks = new HashMap<String, AgentInfo>();
-    HashMap<String, TransactionInfo> unfinishedTransaction = new HashMap<String, TransactionInfo>();
+    BookLedger ledger = new BookLedger();
+    //the first halves of the transactions waiting for the other half, with their expiry in the match timeouts
+    HashMap<String, TimingWheel.Timeout<TransactionInfo>> unfinishedTransaction = new HashMap<String, TimingWheel.Timeout<TransactionInfo>>();
+    TimingWheel<TransactionInfo> matchTimeouts = new TimingWheel<TransactionInfo>(MATCH_TICK, 64, System.currentTimeMillis());
     Codec codec = new SLCodec();
+    //compact language used by the traders which support it, the replies use the language of the request
+    Codec binaryCodec = new BookCodec();
     Ontology onto = BookOntology.getInstance();
     Random rnd = new Random();
 
+    //this shard and the assignment of the agents to the shards, a single shard by default
+    int shard = 0;
+    ShardRing ring = new ShardRing(1);
+    //the other shards
+    DirectoryCache directory = new DirectoryCache(this);
+
+    //time to wait for the other half of a transaction and the resolution of its expiry
+    static final long MATCH_TIMEOUT = 5000;
+    static final long MATCH_TICK = 100;
+
+    //the ledger is journaled to this directory (argument journal=dir)
+    LedgerJournal journal;
+    //the state was recovered from the journal, no new goals are generated
+    boolean recovered = false;
+    //replies waiting for the journal to be written to the disk
+    ArrayList<ACLMessage> heldReplies = new ArrayList<ACLMessage>();
+    static final long JOURNAL_FLUSH_PERIOD = 10;
+    static final long SNAPSHOT_PERIOD = 60000;
+
+    //the settled trades are written to this tape (argument tape=dir)
+    TradeTape tape;
+    static final int TAPE_SEGMENTS = 16;
+    static final int TAPE_SEGMENT_RECORDS = 1 << 16;
+
+    //latencies, failures and queues of the environment (JMX and a CSV file with the argument metrics=file)
+    Metrics metrics = new Metrics();
+    String metricsFile;
+    static final long METRICS_PERIOD = 5000;
+    //number of the best agents printed every 15 seconds (argument leaderboard=k, all by default)
+    int leaderboardSize;
+    //behaviours added by the dispatcher which did not start yet
+    int pendingBehaviours = 0;
+
+    //the kinds of the failures for the metrics (the texts contain the names of the agents and books)
+    static final String[] FAILURE_KINDS = {"not found", "does not have enough money", "does not have",
+            "orders do not match", "sender and receiver do not match", "not matched in time", "already prepared",
+            "not prepared", "did not answer in time", "wrong environment shard", "twice",
+            "cannot be encoded"};
+
+    //the agents trade through the order books of the environment instead of the contract net (argument
+    //market=order-book, only with a single shard)
+    OrderBook orderBook;
+
+    //the last encoded holders of the books and the version of the ledger they are from
+    ArrayList<BookHolders> holderIndexBooks;
+    long holderIndexVersion;
+
+    //time to wait for the other shard to prepare its side of a transaction
+    static final long PREPARE_TIMEOUT = 500;
+    //the sides reserved for the other shards expire if they are not committed or aborted in time, the committed ones
+    //are remembered until then (the commit is repeated when its answer is lost)
+    static final long TRANSFER_LEASE = 30000;
+    TimingWheel<String> transferLeases = new TimingWheel<String>(MATCH_TICK, 64, System.currentTimeMillis());
+    HashMap<String, PositionDelta> committedTransfers = new HashMap<String, PositionDelta>();
+    //time between the attempts to commit the side of the other shard
+    static final long COMMIT_RETRY = 500;
+
+    //settles the trades in its own threads (argument settlementThreads=N, only with a single shard and without the
+    //order book), null if the trades are settled by the behaviours
+    SettlementEngine settlement;
+
 
     @Override
     protected void setup() {
         super.setup();
 
+        HashMap<String, String> args = Utils.parseArguments(getArguments());
+        if (args.containsKey("shards")) {
+            shard = Integer.parseInt(args.getOrDefault("shard", "0"));
+            ring = new ShardRing(Integer.parseInt(args.get("shards")));
+        }
+
+        if (PostQuotes.PROTOCOL.equals(args.get("market"))) {
+            if (ring.getShards() > 1)
+                System.err.println("The order book needs a single environment, the agents trade by the contract net");
+            else
+                orderBook = new OrderBook();
+        }
+
+        if (args.containsKey("settlementThreads")) {
+            if (ring.getShards() > 1 || orderBook != null)
+                System.err.println("The settlement engine needs a single environment without the order book, the trades are settled by the behaviours");
+            else
+                settlement = new SettlementEngine(this, Integer.parseInt(args.get("settlementThreads")));
+        }
+
+        metricsFile = args.get("metrics");
+        leaderboardSize = Integer.parseInt(args.getOrDefault("leaderboard", "" + Integer.MAX_VALUE));
+        metrics.gauge("pending-matches", this::getPendingMatches);
+        metrics.gauge("pending-behaviours", () -> pendingBehaviours);
+        metrics.gauge("message-queue", this::getCurQueueSize);
+        metrics.gauge("held-replies", () -> heldReplies.size());
+        if (settlement != null)
+            metrics.gauge("settlement.queued", settlement::getQueued);
+        if (orderBook != null)
+            metrics.gauge("order-book.orders", orderBook::size);
+        metrics.register(getLocalName());
+
+        //recover the state before we start to talk to the others
+        if (args.containsKey("journal")) {
+            try {
+                journal = new LedgerJournal(new File(args.get("journal")));
+                recovered = journal.recover(ledger);
+                ledger.journal = journal;
+                if (recovered)
+                    System.out.println("Recovered the state of " + ledger.getAgents().size() + " agents");
+            } catch (IOException e) {
+                e.printStackTrace();
+                journal = null;
+            }
+        }
+
+        if (args.containsKey("tape")) {
+            try {
+                tape = new TradeTape(new File(args.get("tape")), TAPE_SEGMENTS, TAPE_SEGMENT_RECORDS);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         //register the codec and the ontology with the content manager
         this.getContentManager().registerLanguage(codec);
+        this.getContentManager().registerLanguage(binaryCodec);
         this.getContentManager().registerOntology(onto);
 
         //describe the environment service
         ServiceDescription sd = new ServiceDescription();
         sd.setType("environment");
         sd.setName("env");
+        sd.addLanguages(binaryCodec.getName());
+        sd.addLanguages(codec.getName());
+        //the traders find the shard of an agent by these
+        if (ring.getShards() > 1) {
+            sd.setName("env-" + shard);
+            sd.addProperties(new Property("shard", String.valueOf(shard)));
+            sd.addProperties(new Property("shards", String.valueOf(ring.getShards())));
+        }
+        //the traders post their quotes instead of sending CFPs to each other
+        if (orderBook != null)
+            sd.addProperties(new Property("market", PostQuotes.PROTOCOL));
 
         //describe this agents and the services it provides
         DFAgentDescription dfd = new DFAgentDescription();
@@ -66,20 +217,51 @@ public class Environment extends Agent {
             e.printStackTrace();
         }
 
+        //the shards send the prepare and commit requests to each other
+        if (ring.getShards() > 1)
+            directory.subscribe("environment");
+
         //send StartTrading to all agents
         addBehaviour(new StartTradingBehavior());
         //periodically print the utilities of all agents
         addBehaviour(new PrintAgentUtilityBehaviour(this));
         //process all incoming requests
         addBehaviour(new MessageDispatcherBehavior());
-        //periodically remove all transactions which were not completed in time
+        //remove the transactions which were not matched in time
         addBehaviour(new UnfinishedTransactionsRemoverBehavior(this));
 
+        if (metricsFile != null)
+            addBehaviour(new MetricsDumpBehaviour(this));
+
+        if (journal != null) {
+            //write the journal to the disk and send the replies waiting for it
+            addBehaviour(new JournalFlushBehaviour(this));
+            //replace the journal with a snapshot from time to time
+            addBehaviour(new SnapshotBehaviour(this));
+        }
+
     }
 
     @Override
     protected void takeDown() {
         super.takeDown();
+        metrics.unregister();
+        if (settlement != null)
+            settlement.shutdown();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (tape != null) {
+            try {
+                tape.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         try {
             DFService.deregister(this);
         } catch (FIPAException e) {
@@ -100,7 +282,9 @@ public class Environment extends Agent {
             dfd.addServices(sd);
 
             try {
-                DFAgentDescription[] traders = DFService.search(myAgent, dfd);
+                DFAgentDescription[] traders = DFService.search(myAgent, dfd, DirectoryCache.allResults());
+                //all the shards must give the same IDs to the books
+                Arrays.sort(traders, (a, b) -> a.getName().getName().compareTo(b.getName().getName()));
 
                 ACLMessage startMsg = new ACLMessage(ACLMessage.REQUEST);
                 startMsg.setOntology(onto.getName());
@@ -113,40 +297,37 @@ public class Environment extends Agent {
                 //generate goals and books for each agent
                 for (DFAgentDescription tr : traders) {
 
-                    Collections.shuffle(booksNames,rnd);
-                    AgentInfo ai = new AgentInfo();
-                    ArrayList<BookInfo> books = new ArrayList<BookInfo>();
-                    ArrayList<Goal> goal = new ArrayList<Goal>();
-
-
-                    for (int i = 0; i < 4; i++) {
-                        BookInfo bi = new BookInfo();
-                        bi.setBookID(bID++);
-                        bi.setBookName(booksNames.get(i));
-                        books.add(bi);
+                    //the agent belongs to another shard
+                    if (ring.shardOf(tr.getName().getName()) != shard) {
+                        bID += booksNames.size();
+                        continue;
                     }
 
-                    for (int i = 4; i < booksNames.size(); i++) {
-                        BookInfo bi = new BookInfo();
-                        bi.setBookID(bID++);
-                        bi.setBookName(booksNames.get(i));
-                        Goal g = new Goal();
-                        g.setBook(bi);
-                        g.setValue(Constants.getPrice(booksNames.get(i))+rnd.nextInt(40)-20);
-                        goal.add(g);
+                    //the agent keeps its recovered books and goals, it only needs to ask for them again
+                    if (recovered) {
+                        if (ledger.hasAgent(tr.getName().getName()))
+                            startMsg.addReceiver(tr.getName());
+                        continue;
                     }
 
-                    ai.setBooks(books);
-                    ai.setGoals(goal);
-                    ai.setMoney(400);
+                    AgentInfo ai = generateAgentInfo(booksNames, rnd, bID);
+                    bID += booksNames.size();
 
                     System.out.println("Created goals for: " + tr.getName().getName());
                     System.out.println("\t" + ai.toString());
-                    agentBooks.put(tr.getName().getName(), ai);
+                    ledger.addAgent(tr.getName().getName(), ai);
                     startMsg.addReceiver(tr.getName());
                 }
 
 
+                //the initial state must be durable before the agents start to trade
+                if (journal != null && !recovered)
+                    journal.snapshot(ledger);
+
+                //the tape has only the hashes of the names of the agents
+                if (tape != null)
+                    tape.writeAgents(ledger.getAgentNames());
+
                 getContentManager().fillContent(startMsg, new Action(myAgent.getAID(), new StartTrading()));
 
                 addBehaviour(new AchieveREInitiator(myAgent, startMsg));
@@ -157,90 +338,219 @@ public class Environment extends Agent {
                 e.printStackTrace();
             } catch (OntologyException e) {
                 e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
 
         }
     }
 
-    //print the utility of all agents every 15 seconds
-    private class PrintAgentUtilityBehaviour extends TickerBehaviour {
+    /**
+     * Generates the books and goals of one agent -- it gets 4 random books and the rest of the books are its goals
+     *
+     * @param booksNames  names of all the books (shuffled by the method)
+     * @param firstBookID the first ID used for the books of the agent, the next booksNames.size() IDs are used too
+     */
+    static AgentInfo generateAgentInfo(ArrayList<String> booksNames, Random rnd, int firstBookID) {
 
-        public PrintAgentUtilityBehaviour(Agent myAgent) {
-            super(myAgent, 15000);
-        }
+        int bID = firstBookID;
 
-        private class AgentUtil implements Comparable<AgentUtil> {
+        Collections.shuffle(booksNames,rnd);
+        AgentInfo ai = new AgentInfo();
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+        ArrayList<Goal> goal = new ArrayList<Goal>();
 
-            public String agent;
-            public double util;
-            public boolean goalMet;
 
-            public AgentUtil(String agent, double util, boolean goalMet) {
-                this.agent = agent;
-                this.util = util;
-                this.goalMet = goalMet;
-            }
+        for (int i = 0; i < 4; i++) {
+            BookInfo bi = new BookInfo();
+            bi.setBookID(bID++);
+            bi.setBookName(booksNames.get(i));
+            books.add(bi);
+        }
 
-            @Override
-            public int compareTo(AgentUtil o) {
-                return Double.compare(this.util, o.util);
-            }
+        for (int i = 4; i < booksNames.size(); i++) {
+            BookInfo bi = new BookInfo();
+            bi.setBookID(bID++);
+            bi.setBookName(booksNames.get(i));
+            Goal g = new Goal();
+            g.setBook(bi);
+            g.setValue(Constants.getPrice(booksNames.get(i))+rnd.nextInt(40)-20);
+            goal.add(g);
         }
 
-        @Override
-        protected void onTick() {
+        ai.setBooks(books);
+        ai.setGoals(goal);
+        ai.setMoney(400);
 
-            ArrayList<AgentUtil> utils = new ArrayList<AgentUtil>();
+        return ai;
+    }
 
-            for (String aid : agentBooks.keySet()) {
-                AgentInfo ai = agentBooks.get(aid);
-                double util = Utils.computeUtility(ai);
-                boolean allGoals = Utils.hasAllBooks(ai);
-                utils.add(new AgentUtil(aid, util, allGoals));
-            }
+    //print the utility of the best agents every 15 seconds
+    private class PrintAgentUtilityBehaviour extends TickerBehaviour {
+
+        public PrintAgentUtilityBehaviour(Agent myAgent) {
+            super(myAgent, 15000);
+        }
 
-            Collections.sort(utils);
+        @Override
+        protected void onTick() {
 
             System.out.println();
             System.out.println();
-            for (int i = utils.size() - 1; i >=0; i--) {
-                AgentUtil au = utils.get(i);
-                System.out.printf("%50s  %13f %5s \n", au.agent, au.util, au.goalMet ? "YES" : "NO");
-                //System.out.println(agentBooks.get(au.agent));
+            for (String agent : ledger.getLeaderboard(leaderboardSize)) {
+                System.out.printf("%50s  %13f %5s \n", agent, ledger.getUtility(agent),
+                        ledger.hasAllGoals(agent) ? "YES" : "NO");
+                //System.out.println(ledger.getAgentInfo(agent));
             }
+            System.out.println("pending matches: " + getPendingMatches());
             System.out.println();
 
         }
     }
 
-    //remove unmatched transactions older than 5 seconds every 5 seconds
+    //remove unmatched transactions older than 5 seconds and the expired reservations of the other shards, checked
+    //every 100 ms
     private class UnfinishedTransactionsRemoverBehavior extends TickerBehaviour {
 
         public UnfinishedTransactionsRemoverBehavior(Agent myAgent) {
-            super(myAgent, 5000);
+            super(myAgent, MATCH_TICK);
         }
 
         @Override
         protected void onTick() {
 
-            ArrayList<String> remove = new ArrayList<String>();
+            matchTimeouts.advance(System.currentTimeMillis(), ti -> {
+                ACLMessage fail = ti.getSenderMessage().createReply();
+                fail.setPerformative(ACLMessage.FAILURE);
+                fail.setContent("transaction not matched in time");
+                countFailure(fail.getContent());
+                send(fail);
+                unfinishedTransaction.remove(ti.getSendOrder().getTradeConversationID());
+            });
+
+            transferLeases.advance(System.currentTimeMillis(), transferID -> {
+                if (ledger.release(transferID) != null)
+                    metrics.counter("settlement.expired-reservations").increment();
+                committedTransfers.remove(transferID);
+            });
 
-            long time = System.currentTimeMillis();
-            for (TransactionInfo ti : unfinishedTransaction.values()) {
-                if (ti.getTimeReceived()-time > 5000)
-                    remove.add(ti.getSendOrder().getTradeConversationID());
+        }
+    }
+
+    //group commit -- one force of the journal for all the transactions settled since the last tick
+    private class JournalFlushBehaviour extends TickerBehaviour {
+
+        public JournalFlushBehaviour(Agent myAgent) {
+            super(myAgent, JOURNAL_FLUSH_PERIOD);
+        }
+
+        @Override
+        protected void onTick() {
+            flushJournal();
+        }
+    }
+
+    //writes the whole ledger to a snapshot and starts a new journal
+    private class SnapshotBehaviour extends TickerBehaviour {
+
+        public SnapshotBehaviour(Agent myAgent) {
+            super(myAgent, SNAPSHOT_PERIOD);
+        }
+
+        @Override
+        protected void onTick() {
+            if (journal.getRecords() == 0)
+                return;
+
+            flushJournal();
+            if (settlement != null)
+                settlement.exclusive(this::snapshot);
+            else
+                snapshot();
+        }
+
+        void snapshot() {
+            try {
+                journal.snapshot(ledger);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }
+    }
 
-            for (String s : remove) {
+    void flushJournal() {
+        //the replies added after this wait for the next force (their changes may not be written yet)
+        ArrayList<ACLMessage> replies;
+        synchronized (heldReplies) {
+            replies = new ArrayList<ACLMessage>(heldReplies);
+            heldReplies.clear();
+        }
+        journal.force();
+        for (ACLMessage reply : replies)
+            send(reply);
+    }
 
-                ACLMessage fail = unfinishedTransaction.get(s).getSenderMessage().createReply();
-                fail.setPerformative(ACLMessage.FAILURE);
-                fail.setContent("transaction not matched in time");
-                send(fail);
-                unfinishedTransaction.remove(s);
+    //sends the reply about a change of the ledger once the change is written to the disk (may be called by the
+    //threads of the settlement engine)
+    void sendDurable(ACLMessage reply) {
+        if (journal == null)
+            send(reply);
+        else
+            synchronized (heldReplies) {
+                heldReplies.add(reply);
             }
+    }
+
+    //appends the metrics to the CSV file
+    private class MetricsDumpBehaviour extends TickerBehaviour {
+
+        public MetricsDumpBehaviour(Agent myAgent) {
+            super(myAgent, METRICS_PERIOD);
+        }
+
+        @Override
+        protected void onTick() {
+            metrics.dumpCsv(metricsFile, System.currentTimeMillis());
+        }
+    }
+
+    void countFailure(String text) {
+        String kind = "other";
+        if (text != null)
+            for (String k : FAILURE_KINDS)
+                if (text.contains(k)) {
+                    kind = k.replace(' ', '-');
+                    break;
+                }
+        metrics.counter("failures." + kind).increment();
+    }
 
+    //behaviour added by the dispatcher, measures how long it waits to be run
+    private abstract class DispatchedBehaviour extends OneShotBehaviour {
+
+        long dispatched = System.nanoTime();
+
+        DispatchedBehaviour() {
+            pendingBehaviours++;
+        }
+
+        DispatchedBehaviour(Agent a) {
+            super(a);
+            pendingBehaviours++;
         }
+
+        @Override
+        public void onStart() {
+            pendingBehaviours--;
+            metrics.histogram("dispatch.wait-us").record((System.nanoTime() - dispatched) / 1000);
+        }
+    }
+
+    /**
+     * Returns the number of transactions waiting for the other half
+     */
+    public int getPendingMatches() {
+        return unfinishedTransaction.size() + (settlement == null ? 0 : settlement.getPendingMatches());
     }
 
     //dispatch the requests to two behaviros which will take care of them
@@ -257,6 +567,7 @@ public class Environment extends Agent {
             }
 
             ContentElement ce = null;
+            long start = System.nanoTime();
             try {
                 ce = myAgent.getContentManager().extractContent(received);
             } catch (Codec.CodecException e) {
@@ -264,6 +575,7 @@ public class Environment extends Agent {
             } catch (OntologyException e) {
                 e.printStackTrace();
             }
+            metrics.histogram("dispatch.decode-us." + received.getLanguage()).record((System.nanoTime() - start) / 1000);
 
             if (!(ce instanceof Action)) {
                 System.err.println("Unexpected message: " + received.getContent());
@@ -271,21 +583,67 @@ public class Environment extends Agent {
 
             Action aa = (Action)ce;
 
+            //the settlement engine settles the orders in its threads
+            if (settlement != null && aa.getAction() instanceof MakeTransaction) {
+                settlement.submit((MakeTransaction)aa.getAction(), received);
+                return;
+            }
+
+            if (settlement != null && aa.getAction() instanceof MakeTransactions) {
+                for (MakeTransaction order : ((MakeTransactions)aa.getAction()).getOrders())
+                    settlement.submit(order, orderMessage(received, order));
+                return;
+            }
+
+            //the snapshots are read without waiting for the settlement
+            if (settlement != null && aa.getAction() instanceof GetMyInfo) {
+                sendInfo((GetMyInfo)aa.getAction(), received);
+                return;
+            }
+
             //add behavior for MakeTransaction
             if (aa.getAction() instanceof MakeTransaction) {
                 myAgent.addBehaviour(new HandleSendBehaviour(myAgent, (MakeTransaction)aa.getAction(), received));
             }
 
+            //add behavior for a batch of MakeTransaction
+            if (aa.getAction() instanceof MakeTransactions) {
+                myAgent.addBehaviour(new HandleSendBatchBehaviour(myAgent, (MakeTransactions)aa.getAction(), received));
+            }
+
+            //the quotes of an agent in the order book mode
+            if (aa.getAction() instanceof PostQuotes && orderBook != null) {
+                myAgent.addBehaviour(new HandleQuotesBehaviour(myAgent, (PostQuotes)aa.getAction(), received));
+            }
+
+            //the traders target their CFPs by the holder index
+            if (aa.getAction() instanceof GetHolderIndex) {
+                myAgent.addBehaviour(new HandleHolderIndexBehaviour(myAgent, (GetHolderIndex)aa.getAction(), received));
+            }
+
             //add behavior for GetMyInfo
             if (aa.getAction() instanceof GetMyInfo) {
                 myAgent.addBehaviour(new HandleInfoBehaviour(myAgent, (GetMyInfo)aa.getAction(), received));
             }
 
+            //the other shards settle the trades of our agents
+            if (aa.getAction() instanceof PrepareTransfer) {
+                myAgent.addBehaviour(new HandlePrepareBehaviour(myAgent, (PrepareTransfer)aa.getAction(), received));
+            }
+
+            if (aa.getAction() instanceof CommitTransfer) {
+                myAgent.addBehaviour(new HandleCommitBehaviour(myAgent, (CommitTransfer)aa.getAction(), received));
+            }
+
+            if (aa.getAction() instanceof AbortTransfer) {
+                ledger.release(((AbortTransfer)aa.getAction()).getTransferID());
+            }
+
         }
     }
 
     //sends the info about the agent who requests it
-    private class HandleInfoBehaviour extends OneShotBehaviour {
+    private class HandleInfoBehaviour extends DispatchedBehaviour {
 
         Agent myAgent;
         GetMyInfo gmi;
@@ -302,37 +660,125 @@ public class Environment extends Agent {
 
             //System.out.println("Got info request from " + request.getSender().getName());
 
-            ACLMessage reply = request.createReply();
+            sendInfo(gmi, request);
+        }
+    }
 
-            String agentName = request.getSender().getName();
+    //sends the last snapshot of the agent who requests it, encoded only once for every version and language (the
+    //request has no content of its own, the answers to it differ only by the snapshot)
+    void sendInfo(GetMyInfo gmi, ACLMessage request) {
 
-            //get the information
-            AgentInfo ai = agentBooks.get(agentName);
+        ACLMessage reply = request.createReply();
 
-            if (ai == null) {
-                reply.setPerformative(ACLMessage.FAILURE);
-                reply.setContent("agent not found");
-                send(reply);
-                return;
-            }
+        String agentName = request.getSender().getName();
+
+        //get the information
+        BookLedger.Snapshot snapshot = ledger.getSnapshot(agentName);
+
+        if (snapshot == null) {
+            reply.setPerformative(ACLMessage.FAILURE);
+            reply.setContent("agent not found");
+            send(reply);
+            return;
+        }
+
+        reply.setPerformative(ACLMessage.INFORM);
+        boolean binary = binaryCodec.getName().equals(reply.getLanguage());
+
+        //the same version was already sent
+        if (binary && snapshot.byteContent != null) {
+            reply.setByteSequenceContent(snapshot.byteContent);
+            metrics.counter("info.cached").increment();
+            send(reply);
+            return;
+        }
+        if (!binary && snapshot.content != null) {
+            reply.setContent(snapshot.content);
+            metrics.counter("info.cached").increment();
+            send(reply);
+            return;
+        }
+
+        //send it to the agent
+        try {
+            getContentManager().fillContent(reply, new Result(gmi, snapshot.getInfo()));
+            if (binary)
+                snapshot.byteContent = reply.getByteSequenceContent();
+            else
+                snapshot.content = reply.getContent();
+            metrics.counter("info.encoded").increment();
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+
+        send(reply);
+    }
+
+
+    //sends the holders of the books and the names of the agents the requester does not know yet
+    private class HandleHolderIndexBehaviour extends DispatchedBehaviour {
+
+        GetHolderIndex ghi;
+        ACLMessage request;
+
+        public HandleHolderIndexBehaviour(Agent a, GetHolderIndex ghi, ACLMessage request) {
+            super(a);
+            this.ghi = ghi;
+            this.request = request;
+        }
+
+        @Override
+        public void action() {
+
+            List<String> names = ledger.getAgentNames();
+            int first = Math.min(Math.max(ghi.getKnownAgents(), 0), names.size());
+
+            HolderIndex index = new HolderIndex();
+            index.setFirstAgent(first);
+            index.setAgents(new ArrayList<String>(names.subList(first, names.size())));
+            index.setBooks(holderIndexBooks());
 
-            //send it to the agent
+            ACLMessage reply = request.createReply();
             reply.setPerformative(ACLMessage.INFORM);
             try {
-                getContentManager().fillContent(reply, new Result(gmi, ai));
+                getContentManager().fillContent(reply, new Result(ghi, index));
             } catch (Codec.CodecException e) {
                 e.printStackTrace();
             } catch (OntologyException e) {
                 e.printStackTrace();
             }
-
-            myAgent.send(reply);
+            send(reply);
         }
     }
 
+    //the holders of the books, encoded again only after the holders change
+    ArrayList<BookHolders> holderIndexBooks() {
+        if (holderIndexBooks != null && holderIndexVersion == ledger.getHoldersVersion())
+            return holderIndexBooks;
+
+        //the holders may change while they are encoded (by the settlement engine), they are encoded again next time
+        long version = ledger.getHoldersVersion();
+        holderIndexBooks = new ArrayList<BookHolders>();
+        for (Map.Entry<String, BitSet> e : ledger.getHolders().entrySet()) {
+            byte[] holders;
+            synchronized (e.getValue()) {
+                holders = e.getValue().toByteArray();
+            }
+            if (holders.length == 0)
+                continue;
+            BookHolders bh = new BookHolders();
+            bh.setBookName(e.getKey());
+            bh.setHolders(holders);
+            holderIndexBooks.add(bh);
+        }
+        holderIndexVersion = version;
+        return holderIndexBooks;
+    }
 
     //process the transaction between two agents
-    private class HandleSendBehaviour extends OneShotBehaviour {
+    private class HandleSendBehaviour extends DispatchedBehaviour {
 
         MakeTransaction sendMsgContent;
         ACLMessage sendMsg;
@@ -345,191 +791,458 @@ public class Environment extends Agent {
 
         @Override
         public void action() {
+            settle(sendMsgContent, sendMsg);
+        }
+    }
 
-            String transactionID = sendMsgContent.getTradeConversationID();
+    //matches the order with the other half of the transaction and settles the transaction
+    void settle(MakeTransaction sendMsgContent, ACLMessage sendMsg) {
 
+        String transactionID = sendMsgContent.getTradeConversationID();
 
-            //we got request from one agent, remember the transaction
-            if (!unfinishedTransaction.containsKey(transactionID)) { //this is the first time we know about transaction
-                unfinishedTransaction.put(transactionID, new TransactionInfo(sendMsgContent, sendMsg, System.currentTimeMillis()));
-                return;
-            }
 
-            //we got request from the other agent
-            ACLMessage sendMsg1 = unfinishedTransaction.get(transactionID).getSenderMessage();
-            ACLMessage sendMsg2 = sendMsg;
+        //we got request from one agent, remember the transaction
+        TimingWheel.Timeout<TransactionInfo> first = unfinishedTransaction.remove(transactionID);
+        if (first == null) { //this is the first time we know about transaction
+            long time = System.currentTimeMillis();
+            TransactionInfo ti = new TransactionInfo(sendMsgContent, sendMsg, time);
+            unfinishedTransaction.put(transactionID, matchTimeouts.schedule(ti, time + MATCH_TIMEOUT));
+            return;
+        }
 
-            MakeTransaction sendOrder1 = unfinishedTransaction.get(transactionID).getSendOrder();
-            MakeTransaction sendOrder2 = sendMsgContent;
+        //we got request from the other agent
+        matchTimeouts.cancel(first);
+        metrics.histogram("settlement.match-latency-ms").record(System.currentTimeMillis() - first.getItem().getTimeReceived());
+
+        ACLMessage sendMsg1 = first.getItem().getSenderMessage();
+        ACLMessage sendMsg2 = sendMsg;
+
+        MakeTransaction sendOrder1 = first.getItem().getSendOrder();
+        MakeTransaction sendOrder2 = sendMsgContent;
+
+        //one of the agents belongs to another shard
+        boolean local1 = ring.shardOf(sendOrder1.getSenderName()) == shard;
+        boolean local2 = ring.shardOf(sendOrder2.getSenderName()) == shard;
+        if (!local1 || !local2) {
+            if (local1)
+                prepareRemote(transactionID, sendOrder1, sendMsg1, sendOrder2, sendMsg2);
+            else if (local2)
+                prepareRemote(transactionID, sendOrder2, sendMsg2, sendOrder1, sendMsg1);
+            else
+                sendFailure(sendMsg1, sendMsg2, "wrong environment shard");
+            return;
+        }
 
 
-            //check the senders and receiver match
-            if (!sendOrder1.getReceiverName().equals(sendOrder2.getSenderName()) ||
-                    !sendOrder1.getSenderName().equals(sendOrder2.getReceiverName())) {
+        //check the orders match and both agents are able to fulfill them
+        String failure = ledger.validate(sendOrder1, sendOrder2);
+        if (failure != null) {
+            sendFailure(sendMsg1, sendMsg2, failure);
+            return;
+        }
 
-                sendFailure(sendMsg1, sendMsg2, "sender and receiver do not match");
-            }
+        //move the books and the money
+        PositionDelta[] deltas = ledger.apply(sendOrder1, sendOrder2);
 
-            String agentName1 = sendOrder1.getSenderName();
-            String agentName2 = sendOrder2.getSenderName();
+        if (tape != null)
+            tape.record(System.currentTimeMillis(), sendOrder1, sendOrder2);
 
-            AgentInfo agentInfo1 = agentBooks.get(agentName1);
-            AgentInfo agentInfo2 = agentBooks.get(agentName2);
+        metrics.counter("settlement.local-trades").increment();
 
-            //check the agents have all the books they want to send
-            ArrayList<BookInfo> ag1MissingBooks = getMissingBooks(agentInfo1, sendOrder1.getSendingBooks());
-            if (ag1MissingBooks.size() > 0) {
-                sendFailure(sendMsg1, sendMsg2, agentName1 + " does not have " + ag1MissingBooks);
-                return;
-            }
+        //send both agent an INFORM with the changes of their positions - the trade was successful
+        sendDelta(sendMsg1, deltas[0]);
+        sendDelta(sendMsg2, deltas[1]);
 
-            ArrayList<BookInfo> ag2MissingBooks = getMissingBooks(agentInfo2, sendOrder2.getSendingBooks());
-            if (ag2MissingBooks.size() > 0) {
-                sendFailure(sendMsg1, sendMsg2, agentName2 + " does not have " + ag2MissingBooks);
-                return;
-            }
+        //System.out.println(sendOrder1.getSenderName() + " " + ledger.getAgentInfo(sendOrder1.getSenderName()));
+        //System.out.println(sendOrder2.getSenderName() + " " + ledger.getAgentInfo(sendOrder2.getSenderName()));
+
+    }
 
-            //check the agent have enough money
-            if (agentInfo1.getMoney() < sendOrder1.getSendingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, agentName1 + " does not have enough money");
+    //reserves the side of our agent and asks the shard of the other agent to reserve its side
+    void prepareRemote(String transferID, MakeTransaction localOrder, ACLMessage localMsg,
+                       MakeTransaction remoteOrder, ACLMessage remoteMsg) {
+
+        String failure = BookLedger.validateMatch(localOrder, remoteOrder);
+        if (failure == null)
+            failure = ledger.reserve(transferID, localOrder.getSenderName(), localOrder.getSendingBooks(),
+                    remoteOrder.getSendingBooks(), localOrder.getSendingMoney(), remoteOrder.getSendingMoney());
+        if (failure != null) {
+            sendFailure(localMsg, remoteMsg, failure);
+            return;
+        }
+
+        PrepareTransfer pt = new PrepareTransfer();
+        pt.setTransferID(transferID);
+        pt.setAgentName(remoteOrder.getSenderName());
+        pt.setBooksOut(remoteOrder.getSendingBooks());
+        pt.setBooksIn(localOrder.getSendingBooks());
+        pt.setMoneyOut(remoteOrder.getSendingMoney());
+        pt.setMoneyIn(localOrder.getSendingMoney());
+
+        try {
+            AID other = shardEnvironment(ring.shardOf(remoteOrder.getSenderName()));
+            if (other == null) {
+                ledger.release(transferID);
+                sendFailure(localMsg, remoteMsg, "environment shard not found");
                 return;
             }
 
-            if (agentInfo2.getMoney() < sendOrder2.getSendingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, agentName2 + " does not have enough money");
+            ACLMessage prepare = shardRequest(other, transferID);
+            prepare.setReplyByDate(new Date(System.currentTimeMillis() + PREPARE_TIMEOUT));
+            getContentManager().fillContent(prepare, new Action(other, pt));
+            addBehaviour(new PrepareInitiator(this, other, prepare, transferID, localOrder, localMsg, remoteOrder,
+                    remoteMsg));
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+            ledger.release(transferID);
+            sendFailure(localMsg, remoteMsg, "transaction cannot be encoded");
+        } catch (OntologyException e) {
+            e.printStackTrace();
+            ledger.release(transferID);
+            sendFailure(localMsg, remoteMsg, "transaction cannot be encoded");
+        } catch (FIPAException e) {
+            e.printStackTrace();
+            ledger.release(transferID);
+            sendFailure(localMsg, remoteMsg, "environment shard not found");
+        }
+    }
+
+    //replaces the orders of the agent in the order book and settles the trades they make
+    private class HandleQuotesBehaviour extends DispatchedBehaviour {
+
+        PostQuotes quotes;
+        ACLMessage request;
+
+        private HandleQuotesBehaviour(Agent a, PostQuotes quotes, ACLMessage request) {
+            super(a);
+            this.quotes = quotes;
+            this.request = request;
+        }
+
+        @Override
+        public void action() {
+
+            String agentName = request.getSender().getName();
+            if (!ledger.hasAgent(agentName)) {
+                ACLMessage reply = request.createReply();
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent(agentName + " not found");
+                countFailure(reply.getContent());
+                send(reply);
                 return;
             }
 
-            //check the list of sent and expected books match
-            if (sendOrder1.getSendingBooks() != null && sendOrder2.getReceivingBooks() != null)
-                if (sendOrder1.getSendingBooks().size() != sendOrder2.getReceivingBooks().size()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
+            ArrayList<OrderBook.Order> orders = new ArrayList<OrderBook.Order>();
+            if (quotes.getOrders() != null)
+                for (LimitOrder lo : quotes.getOrders())
+                    orders.add(new OrderBook.Order(agentName, lo.getBook().getBookName(),
+                            lo.getBuy() ? -1 : lo.getBook().getBookID(), lo.getBuy(), lo.getPrice(), request));
 
-            if (sendOrder2.getSendingBooks() != null && sendOrder1.getReceivingBooks() != null)
-                if (sendOrder1.getReceivingBooks().size() != sendOrder2.getSendingBooks().size()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
+            orderBook.replace(agentName, orders, this::canFill, this::settle);
+        }
 
-            for (int i = 0; i < sendOrder1.getSendingBooks().size(); i++) {
-                if (sendOrder1.getSendingBooks().get(i).getBookID() != sendOrder2.getReceivingBooks().get(i).getBookID()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
-            }
+        //the buyer has the money and the seller has the book
+        boolean canFill(OrderBook.Order o) {
+            if (o.isBuy())
+                return ledger.hasAgent(o.getAgentName()) && ledger.getAvailableMoney(o.getAgentName()) >= o.getPrice();
 
-            for (int i = 0; i < sendOrder2.getSendingBooks().size(); i++) {
-                if (sendOrder2.getSendingBooks().get(i).getBookID() != sendOrder1.getReceivingBooks().get(i).getBookID()) {
-                    sendFailure(sendMsg1, sendMsg2, "orders do not match");
-                    return;
-                }
-            }
+            BookInfo bi = new BookInfo();
+            bi.setBookID(o.getBookID());
+            bi.setBookName(o.getBookName());
+            return ledger.getMissingBooks(o.getAgentName(), Collections.singletonList(bi)).isEmpty();
+        }
+
+        //moves the book and the money and tells both agents
+        void settle(OrderBook.Fill fill) {
+
+            ArrayList<BookInfo> books = new ArrayList<BookInfo>();
+            BookInfo bi = new BookInfo();
+            bi.setBookID(fill.ask.getBookID());
+            bi.setBookName(fill.ask.getBookName());
+            books.add(bi);
+
+            PositionDelta buyer = ledger.update(fill.bid.getAgentName(), new ArrayList<BookInfo>(), books, -fill.price);
+            PositionDelta seller = ledger.update(fill.ask.getAgentName(), books, new ArrayList<BookInfo>(), fill.price);
 
-            //check the amount of money matches
-            if (sendOrder1.getSendingMoney() != sendOrder2.getReceivingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, "orders do not match");
+            metrics.counter("settlement.order-book-trades").increment();
+
+            if (tape != null)
+                tape.record(System.currentTimeMillis(), (fill.bid.getSeq() << 32) | fill.ask.getSeq(),
+                        fill.ask.getAgentName(), fill.bid.getAgentName(), bi, fill.price);
+
+            sendDelta(fill.bid.getRequest(), buyer);
+            sendDelta(fill.ask.getRequest(), seller);
+        }
+    }
+
+    //process all the orders of a batch in one pass, every order is answered separately
+    private class HandleSendBatchBehaviour extends DispatchedBehaviour {
+
+        MakeTransactions batch;
+        ACLMessage batchMsg;
+
+        private HandleSendBatchBehaviour(Agent a, MakeTransactions batch, ACLMessage batchMsg) {
+            super(a);
+            this.batch = batch;
+            this.batchMsg = batchMsg;
+        }
+
+        @Override
+        public void action() {
+            for (MakeTransaction order : batch.getOrders())
+                settle(order, orderMessage(batchMsg, order));
+        }
+    }
+
+    //stands for a single order of the batch, the replies to it are the answers to the order
+    static ACLMessage orderMessage(ACLMessage batchMsg, MakeTransaction order) {
+        ACLMessage msg = (ACLMessage)batchMsg.clone();
+        //the content of the whole batch is not needed for the reply
+        msg.setContent(null);
+        msg.setProtocol(MakeTransactions.PROTOCOL);
+        msg.setConversationId(MakeTransactions.PROTOCOL + "-" + order.getTradeConversationID());
+        return msg;
+    }
+
+    //send FAILURE to both agent, the failure is described as text, only performative is important
+    void sendFailure(ACLMessage msg1, ACLMessage msg2, String text) {
+        countFailure(text);
+        ACLMessage reply1 = msg1.createReply();
+        ACLMessage reply2 = msg2.createReply();
+        reply1.setPerformative(ACLMessage.FAILURE);
+        reply2.setPerformative(ACLMessage.FAILURE);
+        reply1.setContent(text);
+        reply2.setContent(text);
+        send(reply1);
+        send(reply2);
+    }
+
+    //sends the change of the position to the agent as the result of its MakeTransaction request
+    void sendDelta(ACLMessage request, PositionDelta delta) {
+        ACLMessage reply = request.createReply();
+        reply.setPerformative(ACLMessage.INFORM);
+        try {
+            getContentManager().fillContent(reply, delta);
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+        sendDurable(reply);
+    }
+
+    AID shardEnvironment(int shard) throws FIPAException {
+        return directory.getProvider("environment", "shard", String.valueOf(shard));
+    }
+
+    //request to another shard, the shards always speak the binary language
+    ACLMessage shardRequest(AID other, String transferID) {
+        ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+        request.addReceiver(other);
+        request.setLanguage(binaryCodec.getName());
+        request.setOntology(onto.getName());
+        request.setConversationId(transferID);
+        return request;
+    }
+
+    //waits for the other shard to prepare its side of the transaction, then commits both sides
+    private class PrepareInitiator extends AchieveREInitiator {
+
+        AID other;
+        String transferID;
+        MakeTransaction localOrder;
+        ACLMessage localMsg;
+        MakeTransaction remoteOrder;
+        ACLMessage remoteMsg;
+
+        PrepareInitiator(Agent a, AID other, ACLMessage prepare, String transferID, MakeTransaction localOrder,
+                         ACLMessage localMsg, MakeTransaction remoteOrder, ACLMessage remoteMsg) {
+            super(a, prepare);
+            this.other = other;
+            this.transferID = transferID;
+            this.localOrder = localOrder;
+            this.localMsg = localMsg;
+            this.remoteOrder = remoteOrder;
+            this.remoteMsg = remoteMsg;
+        }
+
+        @Override
+        protected void handleInform(ACLMessage inform) {
+            //both sides are reserved, the trade happens -- apply our side and let the other shard apply its side
+            metrics.counter("settlement.cross-shard-trades").increment();
+            PositionDelta delta = ledger.commit(transferID);
+            sendDelta(localMsg, delta);
+
+            //the coordinating shard writes the whole trade
+            if (tape != null)
+                tape.record(System.currentTimeMillis(), localOrder, remoteOrder);
+
+            sendCommit(other, transferID, remoteMsg);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected void handleAllResultNotifications(Vector notifications) {
+            //our side is still reserved only if the other side was not prepared
+            if (ledger.release(transferID) == null)
                 return;
-            }
 
-            if (sendOrder1.getReceivingMoney() != sendOrder2.getSendingMoney()) {
-                sendFailure(sendMsg1, sendMsg2, "orders do not match");
+            if (!notifications.isEmpty()) {
+                sendFailure(localMsg, remoteMsg, ((ACLMessage)notifications.get(0)).getContent());
                 return;
             }
 
-            //remove the books the agent sends
-            ArrayList<BookInfo> books = agentInfo1.getBooks();
-            ArrayList<BookInfo> removeBooks = sendOrder1.getSendingBooks();
-            for (int i = 0; i < removeBooks.size(); i++) {
-                for (int j = 0; j < books.size(); j++) {
-                    if (books.get(j).getBookID() == removeBooks.get(i).getBookID()) {
-                        books.remove(j);
-                        break;
-                    }
-                }
-            }
+            //no answer in time, the other shard may still reserve its side later
+            sendFailure(localMsg, remoteMsg, "environment shard did not answer in time");
 
-            //the same for the other agent
-            books = agentInfo2.getBooks();
-            removeBooks = sendOrder2.getSendingBooks();
-            for (int i = 0; i < removeBooks.size(); i++) {
-                for (int j = 0; j < books.size(); j++) {
-                    if (books.get(j).getBookID() == removeBooks.get(i).getBookID()) {
-                        books.remove(j);
-                        break;
-                    }
-                }
+            AbortTransfer at = new AbortTransfer();
+            at.setTransferID(transferID);
+            try {
+                ACLMessage abort = shardRequest(other, transferID);
+                getContentManager().fillContent(abort, new Action(other, at));
+                send(abort);
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
             }
+        }
+    }
 
-            //add books the agent receives
-            books = agentInfo1.getBooks();
-            ArrayList<BookInfo> addBooks = sendOrder2.getSendingBooks();
-            for (int i = 0; i < addBooks.size(); i++) {
-                books.add(addBooks.get(i));
-            }
+    //asks the other shard to apply its side of a transaction whose side was already applied here
+    void sendCommit(AID other, String transferID, ACLMessage remoteMsg) {
+        try {
+            CommitTransfer ct = new CommitTransfer();
+            ct.setTransferID(transferID);
+            ACLMessage commit = shardRequest(other, transferID);
+            commit.setReplyByDate(new Date(System.currentTimeMillis() + PREPARE_TIMEOUT));
+            getContentManager().fillContent(commit, new Action(other, ct));
+            addBehaviour(new CommitInitiator(this, commit, other, transferID, remoteMsg));
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //waits for the other shard to apply its side and forwards the change to its agent, the commit is repeated until
+    //the other shard answers (it is idempotent)
+    private class CommitInitiator extends AchieveREInitiator {
+
+        AID other;
+        String transferID;
+        ACLMessage remoteMsg;
+        boolean answered = false;
+
+        CommitInitiator(Agent a, ACLMessage commit, AID other, String transferID, ACLMessage remoteMsg) {
+            super(a, commit);
+            this.other = other;
+            this.transferID = transferID;
+            this.remoteMsg = remoteMsg;
+        }
 
-            //the same for the other one
-            books = agentInfo2.getBooks();
-            addBooks = sendOrder1.getSendingBooks();
-            for (int i = 0; i < addBooks.size(); i++) {
-                books.add(addBooks.get(i));
+        @Override
+        protected void handleInform(ACLMessage inform) {
+            answered = true;
+            try {
+                sendDelta(remoteMsg, (PositionDelta)getContentManager().extractContent(inform));
+            } catch (Codec.CodecException e) {
+                e.printStackTrace();
+            } catch (OntologyException e) {
+                e.printStackTrace();
             }
+        }
 
-            //System.out.println("Transaction: " + sendOrder1);
+        @Override
+        protected void handleFailure(ACLMessage failure) {
+            //the message was not delivered (the failure comes from the AMS), it is sent again
+            if (!other.equals(failure.getSender()))
+                return;
 
+            //the reservation of the other side expired, the agent asks for its information when it misses the change
+            answered = true;
+            ACLMessage reply = remoteMsg.createReply();
+            reply.setPerformative(ACLMessage.FAILURE);
+            reply.setContent(failure.getContent());
+            send(reply);
+        }
 
-            //transfer money between agents
-            agentInfo1.setMoney(agentInfo1.getMoney()-sendOrder1.getSendingMoney());
-            agentInfo1.setMoney(agentInfo1.getMoney()+sendOrder2.getSendingMoney());
+        @Override
+        @SuppressWarnings("rawtypes")
+        protected void handleAllResultNotifications(Vector notifications) {
+            if (answered)
+                return;
 
-            agentInfo2.setMoney(agentInfo2.getMoney()-sendOrder2.getSendingMoney());
-            agentInfo2.setMoney(agentInfo2.getMoney()+sendOrder1.getSendingMoney());
+            metrics.counter("settlement.commit-retries").increment();
+            addBehaviour(new WakerBehaviour(myAgent, COMMIT_RETRY) {
+                @Override
+                protected void onWake() {
+                    sendCommit(other, transferID, remoteMsg);
+                }
+            });
+        }
+    }
 
-            //send both agent an INFORM - the trade was successful
-            ACLMessage reply1 = sendMsg1.createReply();
-            ACLMessage reply2 = sendMsg2.createReply();
-            reply1.setPerformative(ACLMessage.INFORM);
-            reply2.setPerformative(ACLMessage.INFORM);
-            reply1.setContent("done");
-            reply2.setContent("done");
-            send(reply1);
-            send(reply2);
+    //reserves the side of our agent of a transaction settled by another shard
+    private class HandlePrepareBehaviour extends DispatchedBehaviour {
 
-            //System.out.println(agentName1 + " " + agentInfo1.toString());
-            //System.out.println(agentName2 + " " + agentInfo2.toString());
+        PrepareTransfer pt;
+        ACLMessage request;
 
+        HandlePrepareBehaviour(Agent a, PrepareTransfer pt, ACLMessage request) {
+            super(a);
+            this.pt = pt;
+            this.request = request;
         }
 
-        //send FAILURE to both agent, the failure is described as text, only performative is important
-        void sendFailure(ACLMessage msg1, ACLMessage msg2, String text) {
-            ACLMessage reply1 = msg1.createReply();
-            ACLMessage reply2 = msg2.createReply();
-            reply1.setPerformative(ACLMessage.FAILURE);
-            reply2.setPerformative(ACLMessage.FAILURE);
-            reply1.setContent(text);
-            reply2.setContent(text);
-            send(reply1);
-            send(reply2);
+        @Override
+        public void action() {
+            String failure = ledger.reserve(pt.getTransferID(), pt.getAgentName(), pt.getBooksOut(), pt.getBooksIn(),
+                    pt.getMoneyOut(), pt.getMoneyIn());
+
+            ACLMessage reply = request.createReply();
+            if (failure == null) {
+                //kept until the other shard commits or aborts it, or until the lease runs out
+                transferLeases.schedule(pt.getTransferID(), System.currentTimeMillis() + TRANSFER_LEASE);
+                reply.setPerformative(ACLMessage.INFORM);
+            } else {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent(failure);
+            }
+            send(reply);
         }
+    }
 
+    //applies the prepared side of our agent and sends back the change of its position
+    private class HandleCommitBehaviour extends DispatchedBehaviour {
 
-        //finds the books the agent wants to send but does not own
-        ArrayList<BookInfo> getMissingBooks(AgentInfo agent, ArrayList<BookInfo> books) {
-            ArrayList<BookInfo> missing = new ArrayList<BookInfo>();
-            for (BookInfo bi : books) {
-                boolean found = false;
-                for (int i = 0; i < agent.getBooks().size(); i++) {
-                    if (agent.getBooks().get(i).getBookID() == bi.getBookID()) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
-                    missing.add(bi);
-                }
+        CommitTransfer ct;
+        ACLMessage request;
+
+        HandleCommitBehaviour(Agent a, CommitTransfer ct, ACLMessage request) {
+            super(a);
+            this.ct = ct;
+            this.request = request;
+        }
+
+        @Override
+        public void action() {
+            PositionDelta delta = ledger.commit(ct.getTransferID());
+            if (delta != null)
+                committedTransfers.put(ct.getTransferID(), delta);
+            else
+                //the commit is repeated, the answer to the first one was lost
+                delta = committedTransfers.get(ct.getTransferID());
+
+            if (delta == null) {
+                ACLMessage reply = request.createReply();
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("transaction not prepared");
+                send(reply);
+                return;
             }
-            return missing;
+
+            sendDelta(request, delta);
         }
     }
 
@@ -0,0 +1,105 @@
+package javastuff;
+
+import jade.core.AID;
+import javastuff.onto.BookHolders;
+import javastuff.onto.BookInfo;
+import javastuff.onto.HolderIndex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The holder indices of the environments as seen by a trader -- which agents have a book with a given name.
+ *
+ * Every environment (shard) numbers its agents and sends only the names of the agents the trader does not know yet,
+ * the holders of each book are a bit set of the numbers. The index is only a hint, the holders may have sold the books
+ * since it was sent.
+ */
+public class HolderDirectory {
+
+    //the index of a single environment
+    static class Shard {
+        ArrayList<String> agents = new ArrayList<String>();
+        HashMap<String, BitSet> holders = new HashMap<String, BitSet>();
+        long updated;
+    }
+
+    HashMap<AID, Shard> shards = new HashMap<AID, Shard>();
+
+    /**
+     * Returns the number of the agents of the environment we know
+     */
+    public int knownAgents(AID env) {
+        Shard s = shards.get(env);
+        return s == null ? 0 : s.agents.size();
+    }
+
+    /**
+     * Replaces the index of the environment with the one it sent
+     */
+    public void update(AID env, HolderIndex index, long now) {
+        Shard s = shards.computeIfAbsent(env, k -> new Shard());
+
+        //the environment restarted and numbered the agents again
+        if (index.getFirstAgent() != s.agents.size())
+            s.agents.clear();
+        if (index.getFirstAgent() != s.agents.size()) {
+            shards.remove(env);
+            return;
+        }
+
+        if (index.getAgents() != null)
+            s.agents.addAll(index.getAgents());
+
+        s.holders.clear();
+        if (index.getBooks() != null)
+            for (BookHolders bh : index.getBooks())
+                s.holders.put(bh.getBookName(), BitSet.valueOf(bh.getHolders()));
+        s.updated = now;
+    }
+
+    /**
+     * Finds the agents who probably have books with all the names
+     *
+     * @param envs   all the environments, each of them must have sent its index
+     * @param maxAge the indices older than this are not used
+     * @return the names of the agents, or null if some of the indices is missing or too old
+     */
+    public HashSet<String> holdersOfAll(Collection<AID> envs, List<BookInfo> books, long now, long maxAge) {
+
+        //everybody can sell nothing
+        if (books.isEmpty() || envs.isEmpty())
+            return null;
+
+        HashSet<String> found = new HashSet<String>();
+
+        for (AID env : envs) {
+            Shard s = shards.get(env);
+            if (s == null || now - s.updated > maxAge)
+                return null;
+
+            BitSet all = null;
+            for (BookInfo bi : books) {
+                BitSet h = s.holders.get(bi.getBookName());
+                if (h == null) {
+                    all = null;
+                    break;
+                }
+                if (all == null)
+                    all = (BitSet)h.clone();
+                else
+                    all.and(h);
+            }
+
+            if (all != null)
+                for (int i = all.nextSetBit(0); i >= 0 && i < s.agents.size(); i = all.nextSetBit(i + 1))
+                    found.add(s.agents.get(i));
+        }
+
+        return found;
+    }
+}
@@ -0,0 +1,122 @@
+package javastuff;
+
+import javastuff.onto.BookInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Books and money a trader promised in the trades which are not settled yet.
+ *
+ * The books offered in a proposal (and the books and money of an accepted offer) are reserved under the conversation
+ * ID of the trade, so they are not offered to anybody else until the environment settles the trade or it fails. Every
+ * reservation has a lease, the reservations of the trades which were forgotten (no answer came) expire.
+ *
+ * The reservations are changed only by the agent thread, they may be read by other threads while the agent waits for
+ * them.
+ */
+public class InventoryReservations {
+
+    //resolution of the leases
+    static final long LEASE_TICK = 100;
+
+    //the promised books and money of a trade
+    static class Reservation {
+        String tradeID;
+        ArrayList<Integer> bookIDs = new ArrayList<Integer>();
+        double money;
+        long expires;
+        TimingWheel.Timeout<String> lease;
+    }
+
+    HashMap<String, Reservation> reservations = new HashMap<String, Reservation>();
+    HashMap<Integer, Reservation> reservedBooks = new HashMap<Integer, Reservation>();
+    double reservedMoney = 0;
+    TimingWheel<String> leases = new TimingWheel<String>(LEASE_TICK, 64, System.currentTimeMillis());
+
+    /**
+     * Reserves the books and the money for the trade, for the given time
+     *
+     * @return false if some of the books is reserved by another trade (nothing is reserved then)
+     */
+    public boolean reserve(String tradeID, List<BookInfo> books, double money, long lease) {
+
+        if (books != null)
+            for (BookInfo bi : books)
+                if (isReserved(bi.getBookID()) && !reservedBooks.get(bi.getBookID()).tradeID.equals(tradeID))
+                    return false;
+
+        release(tradeID);
+
+        Reservation r = new Reservation();
+        r.tradeID = tradeID;
+        r.money = money;
+        if (books != null)
+            for (BookInfo bi : books) {
+                r.bookIDs.add(bi.getBookID());
+                reservedBooks.put(bi.getBookID(), r);
+            }
+        reservedMoney += money;
+
+        r.expires = System.currentTimeMillis() + lease;
+        r.lease = leases.schedule(tradeID, r.expires);
+        reservations.put(tradeID, r);
+        return true;
+    }
+
+    /**
+     * Keeps the reservation of the trade for the given time from now
+     */
+    public void extend(String tradeID, long lease) {
+        Reservation r = reservations.get(tradeID);
+        if (r == null)
+            return;
+        leases.cancel(r.lease);
+        r.expires = System.currentTimeMillis() + lease;
+        r.lease = leases.schedule(tradeID, r.expires);
+    }
+
+    /**
+     * Releases the books and the money of the trade
+     */
+    public void release(String tradeID) {
+        Reservation r = reservations.remove(tradeID);
+        if (r == null)
+            return;
+
+        leases.cancel(r.lease);
+        for (Integer id : r.bookIDs)
+            reservedBooks.remove(id, r);
+        reservedMoney -= r.money;
+    }
+
+    /**
+     * Releases the reservations with expired leases
+     *
+     * @return the number of the released reservations
+     */
+    public int expire(long now) {
+        ArrayList<String> expired = new ArrayList<String>();
+        leases.advance(now, expired::add);
+        for (String tradeID : expired)
+            release(tradeID);
+        return expired.size();
+    }
+
+    public boolean isReserved(int bookID) {
+        Reservation r = reservedBooks.get(bookID);
+        return r != null && r.expires > System.currentTimeMillis();
+    }
+
+    public double getReservedMoney() {
+        return reservedMoney;
+    }
+
+    /**
+     * Returns the number of the trades with reservations
+     */
+    public int size() {
+        return reservations.size();
+    }
+}
@@ -0,0 +1,321 @@
+package javastuff;
+
+import javastuff.onto.AgentInfo;
+import javastuff.onto.BookInfo;
+import javastuff.onto.Goal;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the ledger of the environment.
+ *
+ * Every change of the position of an agent is appended to a memory-mapped journal file before the agents are told
+ * about it. The journal is not forced to the disk after each record -- force() is called periodically and the
+ * replies to the agents wait for it (group commit). From time to time the whole ledger is written to a snapshot and a
+ * new journal is started, so the replay after a restart reads only the snapshot and the changes made after it.
+ *
+ * Files in the directory: snapshot.bin (the last snapshot and its generation) and journal-[generation].log (changes
+ * after the snapshot of the generation). A record of the journal is its length, CRC32 and the data; the journal ends
+ * with the first record which is empty or damaged (written only partially before a crash). The records never cross
+ * the border of the mapped regions, the rest of a region is skipped.
+ *
+ * The changes may be appended by several threads (the settlement engine of the environment), the methods which write
+ * the journal are synchronized.
+ */
+public class LedgerJournal {
+
+    //the mapping of the journal grows by this size
+    static final int MAPPING_SIZE = 16 << 20;
+    static final int SNAPSHOT_MAGIC = 0x4c534e50;
+    static final byte UPDATE = 1;
+    //length which marks the end of a mapped region, the journal continues in the next one
+    static final int NEXT_MAPPING = -1;
+
+    File dir;
+    int generation = 0;
+
+    FileChannel channel;
+    MappedByteBuffer buffer;
+    //position of the mapped region in the file
+    long mappingStart;
+    //records written since the last force
+    boolean dirty = false;
+    //records in the current journal
+    long records = 0;
+
+    public LedgerJournal(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Loads the last snapshot and replays the journal into the ledger, then opens the journal for appending. The
+     * ledger must be empty and must not have this journal set yet.
+     *
+     * @return true if some state was recovered
+     */
+    public boolean recover(BookLedger ledger) throws IOException {
+
+        dir.mkdirs();
+
+        File snapshot = new File(dir, "snapshot.bin");
+        boolean recovered = false;
+        if (snapshot.exists()) {
+            readSnapshot(snapshot, ledger);
+            recovered = true;
+        }
+
+        //the journals of older generations are left only if we crashed during a snapshot
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                if (f.getName().startsWith("journal-") && !f.equals(journalFile(generation)))
+                    f.delete();
+
+        openJournal();
+
+        //replay the changes after the snapshot
+        buffer.position(0);
+        while (true) {
+            byte[] data = readRecord();
+            if (data == null)
+                break;
+            replay(data, ledger);
+            records++;
+            recovered = true;
+        }
+
+        //a damaged record may be followed by older data, the new records must not be mixed with it
+        for (int i = buffer.position(); i < buffer.limit(); i++)
+            buffer.put(i, (byte)0);
+
+        return recovered;
+    }
+
+    /**
+     * Appends the change of the position of an agent, it is durable after the next force()
+     */
+    public synchronized void update(String agentName, List<BookInfo> booksOut, List<BookInfo> booksIn, double moneyChange) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(UPDATE);
+            out.writeUTF(agentName);
+            writeBooks(out, booksOut);
+            writeBooks(out, booksIn);
+            out.writeDouble(moneyChange);
+            append(bytes.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the appended records to the disk
+     *
+     * @return false if there was nothing to write
+     */
+    public synchronized boolean force() {
+        if (!dirty)
+            return false;
+        buffer.force();
+        dirty = false;
+        return true;
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Writes the whole ledger to a new snapshot and starts a new (empty) journal
+     */
+    public synchronized void snapshot(BookLedger ledger) throws IOException {
+
+        force();
+
+        File tmp = new File(dir, "snapshot.tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(generation + 1);
+        out.writeInt(ledger.getAgents().size());
+        for (String name : ledger.getAgents()) {
+            AgentInfo ai = ledger.getAgentInfo(name);
+            out.writeUTF(name);
+            writeBooks(out, ai.getBooks());
+            out.writeInt(ai.getGoals().size());
+            for (Goal g : ai.getGoals()) {
+                out.writeInt(g.getBook().getBookID());
+                out.writeUTF(g.getBook().getBookName());
+                out.writeDouble(g.getValue());
+            }
+            out.writeDouble(ai.getMoney());
+            out.writeInt(ai.getSequence());
+        }
+        out.flush();
+        fos.getFD().sync();
+        out.close();
+
+        //the new snapshot replaces the old one and the old journal at once
+        Files.move(tmp.toPath(), new File(dir, "snapshot.bin").toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+
+        File old = journalFile(generation);
+        close();
+        generation++;
+        old.delete();
+        openJournal();
+        records = 0;
+    }
+
+    public synchronized void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    File journalFile(int generation) {
+        return new File(dir, "journal-" + generation + ".log");
+    }
+
+    void openJournal() throws IOException {
+        channel = FileChannel.open(journalFile(generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        mappingStart = 0;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, mappingStart, MAPPING_SIZE);
+    }
+
+    void append(byte[] data) throws IOException {
+        //the record and the length after it (the end or the NEXT_MAPPING mark) must fit
+        if (buffer.remaining() < data.length + 12) {
+            buffer.putInt(NEXT_MAPPING);
+            buffer.force();
+            mappingStart += buffer.position();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, mappingStart, MAPPING_SIZE);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        //the length is written last, so a partially written record looks like the end of the journal
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putInt((int)crc.getValue());
+        buffer.put(data);
+        buffer.putInt(start, data.length);
+
+        dirty = true;
+        records++;
+    }
+
+    //reads the next record, or returns null at the end of the journal
+    byte[] readRecord() throws IOException {
+
+        int start = buffer.position();
+        int length = buffer.getInt();
+
+        if (length == NEXT_MAPPING) {
+            mappingStart += buffer.position();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, mappingStart, MAPPING_SIZE);
+            return readRecord();
+        }
+
+        if (length <= 0 || length + 8 > buffer.remaining()) {
+            buffer.position(start);
+            return null;
+        }
+        int checksum = buffer.getInt();
+
+        byte[] data = new byte[length];
+        buffer.get(data);
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int)crc.getValue() != checksum) {
+            //the rest of the damaged record is overwritten by the next one
+            buffer.position(start);
+            buffer.putInt(start, 0);
+            return null;
+        }
+
+        return data;
+    }
+
+    void replay(byte[] data, BookLedger ledger) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte type = in.readByte();
+        if (type != UPDATE)
+            throw new IOException("unknown journal record " + type);
+
+        String agentName = in.readUTF();
+        ArrayList<BookInfo> booksOut = readBooks(in);
+        ArrayList<BookInfo> booksIn = readBooks(in);
+        double moneyChange = in.readDouble();
+        ledger.update(agentName, booksOut, booksIn, moneyChange);
+    }
+
+    void readSnapshot(File snapshot, BookLedger ledger) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC)
+                throw new IOException("not a snapshot: " + snapshot);
+            generation = in.readInt();
+
+            int agents = in.readInt();
+            for (int i = 0; i < agents; i++) {
+                String name = in.readUTF();
+                AgentInfo ai = new AgentInfo();
+                ai.setBooks(readBooks(in));
+
+                ArrayList<Goal> goals = new ArrayList<Goal>();
+                int goalCount = in.readInt();
+                for (int j = 0; j < goalCount; j++) {
+                    BookInfo bi = new BookInfo();
+                    bi.setBookID(in.readInt());
+                    bi.setBookName(in.readUTF());
+                    Goal g = new Goal();
+                    g.setBook(bi);
+                    g.setValue(in.readDouble());
+                    goals.add(g);
+                }
+                ai.setGoals(goals);
+                ai.setMoney(in.readDouble());
+                ai.setSequence(in.readInt());
+
+                ledger.addAgent(name, ai);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static void writeBooks(DataOutputStream out, List<BookInfo> books) throws IOException {
+        out.writeInt(books == null ? 0 : books.size());
+        if (books == null)
+            return;
+        for (BookInfo bi : books) {
+            out.writeInt(bi.getBookID());
+            out.writeUTF(bi.getBookName());
+        }
+    }
+
+    static ArrayList<BookInfo> readBooks(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<BookInfo> books = new ArrayList<BookInfo>(count);
+        for (int i = 0; i < count; i++) {
+            BookInfo bi = new BookInfo();
+            bi.setBookID(in.readInt());
+            bi.setBookName(in.readUTF());
+            books.add(bi);
+        }
+        return books;
+    }
+}
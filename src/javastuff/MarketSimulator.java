@@ -0,0 +1,286 @@
+package javastuff;
+
+import javastuff.onto.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Deterministic in-process simulation of the market without JADE messaging.
+ *
+ * The agents get their books and goals the same way as from the Environment, the trading rounds call the same logic
+ * as the ContractNet in BookTrader (proposePurchase, proposeSale and the choice of the offer) and the trades are
+ * settled by the same rules as in the Environment. The time is virtual -- every round all the agents try to buy a book
+ * and the clock moves by the period of the trading behaviour -- so one session takes milliseconds.
+ *
+ * Run with: gradle simulate -Pargs="agents sessions seed threads [counterpartyPricing]"
+ */
+public class MarketSimulator {
+
+    //the period of the trading behaviour of BookTrader
+    public static final long TICK = 50;
+
+    //a trader without the agent around it
+    static class SimulatedTrader implements TraderState {
+
+        String name;
+        ArrayList<BookInfo> myBooks;
+        ArrayList<Goal> myGoals;
+        double myMoney;
+        BookTraderLogic logic;
+
+        @Override
+        public ArrayList<BookInfo> getMyBooks() {
+            return myBooks;
+        }
+
+        @Override
+        public ArrayList<Goal> getMyGoals() {
+            return myGoals;
+        }
+
+        @Override
+        public double getMyMoney() {
+            return myMoney;
+        }
+
+        void applyDelta(PositionDelta delta) {
+            for (BookInfo out : delta.getBooksOut())
+                myBooks.removeIf(bi -> bi.getBookID() == out.getBookID());
+            myBooks.addAll(delta.getBooksIn());
+            myMoney += delta.getMoneyChange();
+        }
+    }
+
+    //outcome of one session
+    public static class SessionResult {
+
+        public long seed;
+        public int rounds;
+        public int trades;
+        public int failures;
+        public double[] utilities;
+        public int goalsMet;
+
+        public double meanUtility() {
+            double sum = 0;
+            for (double u : utilities)
+                sum += u;
+            return sum / utilities.length;
+        }
+    }
+
+    int agentCount;
+    long seed;
+    //the traders price the trades for each counterparty (BookTraderLogic.setCounterpartyPricing)
+    boolean counterpartyPricing = false;
+
+    VirtualClock clock;
+    Random rnd;
+    BookLedger ledger;
+    ArrayList<SimulatedTrader> traders;
+
+    public MarketSimulator(int agentCount, long seed) {
+        this.agentCount = agentCount;
+        this.seed = seed;
+    }
+
+    /**
+     * Runs one complete trading session
+     */
+    public SessionResult run() {
+
+        clock = new VirtualClock(0);
+        rnd = new Random(seed);
+        ledger = new BookLedger();
+        traders = new ArrayList<SimulatedTrader>();
+
+        SessionResult result = new SessionResult();
+        result.seed = seed;
+
+        ArrayList<String> booksNames = new ArrayList<String>(Constants.getBooknames());
+        //the order of the names must not depend on the hash map
+        booksNames.sort(null);
+        int bID = 0;
+
+        //generate goals and books for each agent
+        for (int i = 0; i < agentCount; i++) {
+            String name = "t" + (i + 1);
+            AgentInfo ai = Environment.generateAgentInfo(booksNames, rnd, bID);
+            bID += booksNames.size();
+            ledger.addAgent(name, ai);
+
+            SimulatedTrader trader = new SimulatedTrader();
+            AgentInfo view = ledger.getAgentInfo(name);
+            trader.name = name;
+            trader.myBooks = view.getBooks();
+            trader.myGoals = view.getGoals();
+            trader.myMoney = view.getMoney();
+            trader.logic = new BookTraderLogic(trader, clock, new Random(rnd.nextLong()));
+            trader.logic.setCounterpartyPricing(counterpartyPricing);
+            traders.add(trader);
+        }
+
+        for (SimulatedTrader trader : traders)
+            trader.logic.startTrading();
+
+        long end = BookTraderLogic.TRADING_DURATION;
+        while (clock.currentTimeMillis() < end) {
+            for (SimulatedTrader buyer : traders)
+                round(buyer, result);
+            result.rounds++;
+            clock.advance(TICK);
+        }
+
+        result.utilities = new double[agentCount];
+        for (int i = 0; i < agentCount; i++) {
+            result.utilities[i] = ledger.getUtility(traders.get(i).name);
+            if (ledger.hasAllGoals(traders.get(i).name))
+                result.goalsMet++;
+        }
+
+        return result;
+    }
+
+    //one ContractNet round -- the buyer asks all the others for books and chooses the best offer
+    void round(SimulatedTrader buyer, SessionResult result) {
+
+        ArrayList<BookInfo> proposedBooks = buyer.logic.proposePurchase();
+
+        BookTraderLogic.OfferInfo best = null;
+        SimulatedTrader bestSeller = null;
+        ArrayList<BookInfo> bestWillSell = null;
+        //the proposals of the sellers, they learn whether the buyer accepted them
+        ArrayList<SimulatedTrader> proposers = new ArrayList<SimulatedTrader>();
+        ArrayList<ChooseFrom> proposals = new ArrayList<ChooseFrom>();
+
+        for (SimulatedTrader seller : traders) {
+            if (seller == buyer)
+                continue;
+
+            //the seller refuses if it does not have the books
+            ArrayList<BookInfo> sellBooks = seller.logic.findOwnBooks(proposedBooks);
+            if (sellBooks == null)
+                continue;
+
+            ChooseFrom cf = new ChooseFrom();
+            cf.setWillSell(sellBooks);
+            cf.setOffers(seller.logic.proposeSale(sellBooks, buyer.name));
+            proposers.add(seller);
+            proposals.add(cf);
+
+            BookTraderLogic.OfferInfo offer = buyer.logic.chooseOffer(cf, null, seller.name);
+            if (offer != null && (best == null || offer.value > best.value)) {
+                best = offer;
+                bestSeller = seller;
+                bestWillSell = sellBooks;
+            }
+        }
+
+        //as in SellBookResponder.handleAcceptProposal and handleRejectProposal
+        for (int i = 0; i < proposers.size(); i++)
+            proposers.get(i).logic.observeAnswer(buyer.name, proposals.get(i).getWillSell(), proposals.get(i).getOffers(),
+                    proposers.get(i) == bestSeller);
+
+        if (best == null)
+            return;
+
+        buyer.logic.updateLogic();
+        bestSeller.logic.updateLogic();
+
+        //the orders of both sides, as in ObtainBook.handleInform and SellBookResponder.handleAcceptProposal
+        ArrayList<BookInfo> paidBooks = best.offer.getBooks() == null ? new ArrayList<BookInfo>() : best.offer.getBooks();
+
+        MakeTransaction sellerOrder = new MakeTransaction();
+        sellerOrder.setSenderName(bestSeller.name);
+        sellerOrder.setReceiverName(buyer.name);
+        sellerOrder.setSendingBooks(bestWillSell);
+        sellerOrder.setSendingMoney(0.0);
+        sellerOrder.setReceivingBooks(paidBooks);
+        sellerOrder.setReceivingMoney(best.offer.getMoney());
+
+        MakeTransaction buyerOrder = new MakeTransaction();
+        buyerOrder.setSenderName(buyer.name);
+        buyerOrder.setReceiverName(bestSeller.name);
+        buyerOrder.setSendingBooks(paidBooks);
+        buyerOrder.setSendingMoney(best.offer.getMoney());
+        buyerOrder.setReceivingBooks(bestWillSell);
+        buyerOrder.setReceivingMoney(0.0);
+
+        if (ledger.validate(sellerOrder, buyerOrder) != null) {
+            result.failures++;
+            return;
+        }
+
+        PositionDelta[] deltas = ledger.apply(sellerOrder, buyerOrder);
+        bestSeller.applyDelta(deltas[0]);
+        buyer.applyDelta(deltas[1]);
+
+        bestSeller.logic.updateLogic();
+        buyer.logic.updateLogic();
+        result.trades++;
+    }
+
+    /**
+     * Runs the sessions with the seeds firstSeed, firstSeed+1, ... in parallel
+     */
+    public static List<SessionResult> runSessions(int agentCount, int sessions, long firstSeed, int threads) throws Exception {
+        return runSessions(agentCount, sessions, firstSeed, threads, false);
+    }
+
+    public static List<SessionResult> runSessions(int agentCount, int sessions, long firstSeed, int threads,
+                                                  boolean counterpartyPricing) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.submit(() -> LongStream.range(firstSeed, firstSeed + sessions).parallel()
+                    .mapToObj(seed -> {
+                        MarketSimulator simulator = new MarketSimulator(agentCount, seed);
+                        simulator.counterpartyPricing = counterpartyPricing;
+                        return simulator.run();
+                    })
+                    .collect(Collectors.toList())).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int agentCount = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        boolean counterpartyPricing = args.length > 4 && args[4].equals("counterpartyPricing");
+
+        //a trade needs two traders
+        if (agentCount < 2) {
+            System.err.println("usage: MarketSimulator agents sessions seed threads [counterpartyPricing], at least 2 agents");
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<SessionResult> results = runSessions(agentCount, sessions, seed, threads, counterpartyPricing);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        double utility = 0;
+        long trades = 0;
+        long failures = 0;
+        long goalsMet = 0;
+        for (SessionResult r : results) {
+            utility += r.meanUtility();
+            trades += r.trades;
+            failures += r.failures;
+            goalsMet += r.goalsMet;
+        }
+
+        System.out.printf("sessions: %d, agents: %d, time: %.2f s (%.0f sessions/min)\n", sessions, agentCount, seconds,
+                sessions * 60 / seconds);
+        System.out.printf("mean utility: %.2f, trades/session: %.1f, failures/session: %.2f, goals met: %.1f %%\n",
+                utility / sessions, (double)trades / sessions, (double)failures / sessions,
+                100.0 * goalsMet / ((long)sessions * agentCount));
+    }
+}
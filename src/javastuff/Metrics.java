@@ -0,0 +1,247 @@
+package javastuff;
+
+import javax.management.*;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the metrics of an agent -- histograms, counters and gauges by their names.
+ *
+ * Recording is lock free (atomic counters), so the metrics can be recorded from any thread. The registry is a
+ * DynamicMBean: every counter and gauge is an attribute and every histogram has the attributes name.count, name.mean,
+ * name.p50, name.p90, name.p99 and name.max. The registry can also append all the values to a CSV file.
+ */
+public class Metrics implements DynamicMBean {
+
+    /**
+     * Histogram of non-negative long values with logarithmic buckets (the relative error is below 1/64), in the
+     * style of HdrHistogram. The values above 2^40 are counted as 2^40.
+     */
+    public static class Histogram {
+
+        //each power of two is divided into this number of linear buckets
+        static final int SUB_BUCKET_BITS = 7;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int HALF = SUB_BUCKETS / 2;
+        static final long MAX_VALUE = 1L << 40;
+
+        AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+        LongAdder count = new LongAdder();
+        LongAdder sum = new LongAdder();
+        AtomicLong max = new AtomicLong();
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS)
+                return (int)value;
+            //the value shifted to [HALF, SUB_BUCKETS)
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+            return SUB_BUCKETS + (shift - 1) * HALF + (int)((value >>> shift) - HALF);
+        }
+
+        //the lowest value of the bucket
+        static long value(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int shift = (index - SUB_BUCKETS) / HALF + 1;
+            return (HALF + (long)((index - SUB_BUCKETS) % HALF)) << shift;
+        }
+
+        public void record(long value) {
+            value = Math.min(Math.max(value, 0), MAX_VALUE);
+            counts.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+
+            long m = max.get();
+            while (value > m && !max.compareAndSet(m, value))
+                m = max.get();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMean() {
+            long c = count.sum();
+            return c == 0 ? 0 : (double)sum.sum() / c;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns the value below which the given fraction of the recorded values is (the lowest value of its bucket)
+         */
+        public long getPercentile(double fraction) {
+            long c = count.sum();
+            if (c == 0)
+                return 0;
+
+            long rank = (long)Math.ceil(fraction * c);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return value(i);
+            }
+            return max.get();
+        }
+    }
+
+    ConcurrentSkipListMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+    ConcurrentSkipListMap<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+    ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<String, LongSupplier>();
+
+    //the MBean names of the attributes of the histograms
+    static final String[] HISTOGRAM_ATTRIBUTES = {"count", "mean", "p50", "p90", "p99", "max"};
+
+    ObjectName objectName;
+
+    /**
+     * Returns the histogram with the name, creates it if it does not exist
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Returns the counter with the name, creates it if it does not exist
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Registers a gauge -- its value is read when the metrics are reported
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Registers the registry with the platform MBean server
+     */
+    public void register(String name) {
+        try {
+            objectName = new ObjectName("javastuff:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Appends the current values of all the metrics to the CSV file (time,metric,count,mean,p50,p90,p99,max), the
+     * counters and gauges have only the count
+     */
+    public void dumpCsv(String file, long time) {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+            for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+                Histogram h = e.getValue();
+                out.printf("%d,%s,%d,%.1f,%d,%d,%d,%d\n", time, e.getKey(), h.getCount(), h.getMean(),
+                        h.getPercentile(0.5), h.getPercentile(0.9), h.getPercentile(0.99), h.getMax());
+            }
+            for (Map.Entry<String, LongAdder> e : counters.entrySet())
+                out.printf("%d,%s,%d,,,,,\n", time, e.getKey(), e.getValue().sum());
+            for (Map.Entry<String, LongSupplier> e : gauges.entrySet())
+                out.printf("%d,%s,%d,,,,,\n", time, e.getKey(), e.getValue().getAsLong());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+
+        if (counters.containsKey(attribute))
+            return counters.get(attribute).sum();
+        if (gauges.containsKey(attribute))
+            return gauges.get(attribute).getAsLong();
+
+        int dot = attribute.lastIndexOf('.');
+        Histogram h = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+        if (h != null) {
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return h.getCount();
+                case "mean":
+                    return h.getMean();
+                case "p50":
+                    return h.getPercentile(0.5);
+                case "p90":
+                    return h.getPercentile(0.9);
+                case "p99":
+                    return h.getPercentile(0.99);
+                case "max":
+                    return h.getMax();
+            }
+        }
+
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            try {
+                list.add(new Attribute(a, getAttribute(a)));
+            } catch (AttributeNotFoundException e) {
+                //the attributes which do not exist are left out
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("the metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : histograms.keySet())
+            for (String a : HISTOGRAM_ATTRIBUTES)
+                attributes.add(new MBeanAttributeInfo(name + "." + a, a.equals("mean") ? "double" : "long",
+                        a + " of " + name, true, false, false));
+        for (String name : counters.keySet())
+            attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+        for (String name : gauges.keySet())
+            attributes.add(new MBeanAttributeInfo(name, "long", "gauge", true, false, false));
+
+        return new MBeanInfo(getClass().getName(), "metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null, null, null);
+    }
+}
@@ -0,0 +1,207 @@
+package javastuff;
+
+import jade.lang.acl.ACLMessage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Continuous double auction -- bids and asks for single books, by the names of the books.
+ *
+ * An incoming order is matched with the best resting order on the other side (the highest bid, the lowest ask, the
+ * older one for the same price) if their prices cross, and the trade happens at the price of the resting order.
+ * Otherwise the order rests in the book. The orders are not checked against the ledger when they rest -- an order which
+ * cannot be filled any more (the book was sold, the money was spent) is dropped when it gets to the top of the book.
+ *
+ * Not thread safe, it is used from the behaviours of the environment.
+ */
+public class OrderBook {
+
+    /**
+     * Order for a single book of an agent
+     */
+    public static class Order {
+
+        String agentName;
+        String bookName;
+        //the ID of the sold book, -1 for bids
+        int bookID;
+        boolean buy;
+        double price;
+        //the message which placed the order, the fills are sent as the replies to it
+        ACLMessage request;
+        //time priority
+        long seq;
+        boolean resting = false;
+
+        public Order(String agentName, String bookName, int bookID, boolean buy, double price, ACLMessage request) {
+            this.agentName = agentName;
+            this.bookName = bookName;
+            this.bookID = bookID;
+            this.buy = buy;
+            this.price = price;
+            this.request = request;
+        }
+
+        public String getAgentName() {
+            return agentName;
+        }
+
+        public String getBookName() {
+            return bookName;
+        }
+
+        public int getBookID() {
+            return bookID;
+        }
+
+        public boolean isBuy() {
+            return buy;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+
+        public ACLMessage getRequest() {
+            return request;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        //the same order placed again keeps its place in the book
+        boolean sameAs(Order o) {
+            return buy == o.buy && bookID == o.bookID && price == o.price && bookName.equals(o.bookName);
+        }
+    }
+
+    /**
+     * Matched bid and ask and the price of the trade
+     */
+    public static class Fill {
+
+        public Order bid;
+        public Order ask;
+        public double price;
+
+        Fill(Order bid, Order ask, double price) {
+            this.bid = bid;
+            this.ask = ask;
+            this.price = price;
+        }
+    }
+
+    static final Comparator<Order> BIDS = (a, b) -> a.price != b.price ? Double.compare(b.price, a.price) : Long.compare(a.seq, b.seq);
+    static final Comparator<Order> ASKS = (a, b) -> a.price != b.price ? Double.compare(a.price, b.price) : Long.compare(a.seq, b.seq);
+
+    //both sides of the book with a name
+    static class Side {
+        TreeSet<Order> bids = new TreeSet<Order>(BIDS);
+        TreeSet<Order> asks = new TreeSet<Order>(ASKS);
+    }
+
+    HashMap<String, Side> books = new HashMap<String, Side>();
+    //orders of the agents (may contain the orders which do not rest any more)
+    HashMap<String, ArrayList<Order>> agentOrders = new HashMap<String, ArrayList<Order>>();
+    long nextSeq = 0;
+    int size = 0;
+
+    /**
+     * Replaces all the resting orders of the agent with the quotes -- the orders which are quoted again keep their
+     * place, the others are cancelled and the new ones are matched and placed.
+     *
+     * @param valid  checks an order can still be filled (the agent has the book or the money)
+     * @param settle applies the trade, it is called before the next order is matched
+     */
+    public void replace(String agentName, List<Order> quotes, Predicate<Order> valid, Consumer<Fill> settle) {
+
+        ArrayList<Order> fresh = new ArrayList<Order>(quotes);
+        ArrayList<Order> kept = new ArrayList<Order>();
+
+        ArrayList<Order> old = agentOrders.remove(agentName);
+        if (old != null)
+            for (Order o : old) {
+                if (!o.resting)
+                    continue;
+
+                int same = -1;
+                for (int i = 0; i < fresh.size() && same < 0; i++)
+                    if (fresh.get(i).sameAs(o))
+                        same = i;
+
+                if (same >= 0) {
+                    fresh.remove(same);
+                    kept.add(o);
+                } else
+                    remove(o);
+            }
+        agentOrders.put(agentName, kept);
+
+        for (Order o : fresh)
+            if (valid.test(o))
+                place(o, valid, settle);
+    }
+
+    //matches the order with the best order on the other side, or lets it rest in the book
+    void place(Order o, Predicate<Order> valid, Consumer<Fill> settle) {
+
+        o.seq = nextSeq++;
+        Side side = books.computeIfAbsent(o.bookName, k -> new Side());
+        TreeSet<Order> other = o.buy ? side.asks : side.bids;
+
+        Iterator<Order> it = other.iterator();
+        while (it.hasNext()) {
+            Order best = it.next();
+            if (o.buy ? best.price > o.price : best.price < o.price)
+                break;
+
+            //the order cannot be filled any more
+            if (!valid.test(best)) {
+                it.remove();
+                removed(best);
+                continue;
+            }
+
+            //the agent does not trade with itself, an order of another agent at a worse price may still match
+            if (best.agentName.equals(o.agentName))
+                continue;
+
+            it.remove();
+            removed(best);
+            settle.accept(o.buy ? new Fill(o, best, best.price) : new Fill(best, o, best.price));
+            return;
+        }
+
+        o.resting = true;
+        (o.buy ? side.bids : side.asks).add(o);
+        agentOrders.computeIfAbsent(o.agentName, k -> new ArrayList<Order>()).add(o);
+        size++;
+    }
+
+    void remove(Order o) {
+        Side side = books.get(o.bookName);
+        (o.buy ? side.bids : side.asks).remove(o);
+        removed(o);
+    }
+
+    //the order was taken out of its side
+    void removed(Order o) {
+        o.resting = false;
+        size--;
+    }
+
+    /**
+     * Returns the number of the resting orders
+     */
+    public int size() {
+        return size;
+    }
+}
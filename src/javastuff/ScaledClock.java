@@ -0,0 +1,21 @@
+package javastuff;
+
+/**
+ * Clock which runs faster than the wall clock -- with the scale 100 a 180 s trading session takes 1.8 s, but the
+ * trading logic sees the same phases (averages after 10 s, no non-goal books after 150 s) as with the wall clock.
+ */
+public class ScaledClock implements Clock {
+
+    long start;
+    double scale;
+
+    public ScaledClock(double scale) {
+        this.start = System.currentTimeMillis();
+        this.scale = scale;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return start + (long)((System.currentTimeMillis() - start) * scale);
+    }
+}
@@ -0,0 +1,217 @@
+package javastuff;
+
+import jade.content.ContentManager;
+import jade.content.lang.Codec;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.OntologyException;
+import jade.lang.acl.ACLMessage;
+import javastuff.onto.BookOntology;
+import javastuff.onto.MakeTransaction;
+import javastuff.onto.PositionDelta;
+import javastuff.onto.TransactionInfo;
+
+import java.util.HashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Settles the MakeTransaction orders of the environment in its own threads, so the agent thread only decodes the
+ * requests and answers GetMyInfo from the snapshots of the ledger.
+ *
+ * The engine has several partitions, each of them is a single thread. Both halves of a trade go to the partition of
+ * its conversation ID, so the unmatched halves and their timeouts are owned by a single thread. The matched trade is
+ * validated and applied while holding the locks of both agents -- one of the striped locks by the hash of the agent
+ * name, always taken in the order of the stripes. Trades of different agents are applied in parallel.
+ *
+ * The replies are sent by the agent's send (the journaled ones after the journal is forced), each partition encodes
+ * them with its own content manager. Used only with a single environment shard and without the order book.
+ */
+public class SettlementEngine {
+
+    //number of the striped locks of the agents
+    static final int STRIPES = 64;
+
+    //a single thread which matches and settles the trades with the conversation IDs hashed to it
+    class Partition {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        HashMap<String, TimingWheel.Timeout<TransactionInfo>> unfinished = new HashMap<String, TimingWheel.Timeout<TransactionInfo>>();
+        TimingWheel<TransactionInfo> timeouts = new TimingWheel<TransactionInfo>(Environment.MATCH_TICK, 64, System.currentTimeMillis());
+        ContentManager contentManager = new ContentManager();
+
+        Partition() {
+            contentManager.registerLanguage(new SLCodec());
+            contentManager.registerLanguage(new BookCodec());
+            contentManager.registerOntology(BookOntology.getInstance());
+            executor.scheduleAtFixedRate(this::expire, Environment.MATCH_TICK, Environment.MATCH_TICK, TimeUnit.MILLISECONDS);
+        }
+
+        //fails the halves which were not matched in time
+        void expire() {
+            timeouts.advance(System.currentTimeMillis(), ti -> {
+                unfinished.remove(ti.getSendOrder().getTradeConversationID());
+                pendingMatches.decrementAndGet();
+                ACLMessage fail = ti.getSenderMessage().createReply();
+                fail.setPerformative(ACLMessage.FAILURE);
+                fail.setContent("transaction not matched in time");
+                env.countFailure(fail.getContent());
+                env.send(fail);
+            });
+        }
+    }
+
+    Environment env;
+    Partition[] partitions;
+    ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    AtomicInteger pendingMatches = new AtomicInteger();
+    AtomicInteger queued = new AtomicInteger();
+
+    public SettlementEngine(Environment env, int threads) {
+        this.env = env;
+        partitions = new Partition[threads];
+        for (int i = 0; i < threads; i++)
+            partitions[i] = new Partition();
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new ReentrantLock();
+    }
+
+    /**
+     * Queues a half of a trade in its partition, the reply is sent once it is settled, fails or times out
+     */
+    public void submit(MakeTransaction order, ACLMessage msg) {
+        Partition p = partitions[Math.floorMod(order.getTradeConversationID().hashCode(), partitions.length)];
+        queued.incrementAndGet();
+        long submitted = System.nanoTime();
+        p.executor.execute(() -> {
+            queued.decrementAndGet();
+            env.metrics.histogram("settlement.queue-us").record((System.nanoTime() - submitted) / 1000);
+            try {
+                settle(p, order, msg);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    //matches the half with the other one and settles the trade
+    void settle(Partition p, MakeTransaction order, ACLMessage msg) {
+
+        String transactionID = order.getTradeConversationID();
+
+        TimingWheel.Timeout<TransactionInfo> first = p.unfinished.remove(transactionID);
+        if (first == null) {
+            long time = System.currentTimeMillis();
+            TransactionInfo ti = new TransactionInfo(order, msg, time);
+            p.unfinished.put(transactionID, p.timeouts.schedule(ti, time + Environment.MATCH_TIMEOUT));
+            pendingMatches.incrementAndGet();
+            return;
+        }
+
+        p.timeouts.cancel(first);
+        pendingMatches.decrementAndGet();
+        env.metrics.histogram("settlement.match-latency-ms").record(System.currentTimeMillis() - first.getItem().getTimeReceived());
+
+        ACLMessage sendMsg1 = first.getItem().getSenderMessage();
+        MakeTransaction sendOrder1 = first.getItem().getSendOrder();
+
+        String failure = BookLedger.validateMatch(sendOrder1, order);
+        if (failure != null) {
+            env.sendFailure(sendMsg1, msg, failure);
+            return;
+        }
+
+        PositionDelta[] deltas;
+        int stripe1 = stripe(sendOrder1.getSenderName());
+        int stripe2 = stripe(order.getSenderName());
+        lock(stripe1, stripe2);
+        try {
+            //the halves were matched above, only the accounts are checked while holding the locks
+            failure = env.ledger.validateSide(sendOrder1.getSenderName(), sendOrder1.getSendingBooks(),
+                    sendOrder1.getSendingMoney());
+            if (failure == null)
+                failure = env.ledger.validateSide(order.getSenderName(), order.getSendingBooks(), order.getSendingMoney());
+            if (failure != null) {
+                deltas = null;
+            } else {
+                deltas = env.ledger.apply(sendOrder1, order);
+                if (env.tape != null)
+                    env.tape.record(System.currentTimeMillis(), sendOrder1, order);
+            }
+        } finally {
+            unlock(stripe1, stripe2);
+        }
+
+        if (deltas == null) {
+            env.sendFailure(sendMsg1, msg, failure);
+            return;
+        }
+
+        env.metrics.counter("settlement.local-trades").increment();
+        sendDelta(p, sendMsg1, deltas[0]);
+        sendDelta(p, msg, deltas[1]);
+    }
+
+    void sendDelta(Partition p, ACLMessage request, PositionDelta delta) {
+        ACLMessage reply = request.createReply();
+        reply.setPerformative(ACLMessage.INFORM);
+        try {
+            p.contentManager.fillContent(reply, delta);
+        } catch (Codec.CodecException e) {
+            e.printStackTrace();
+        } catch (OntologyException e) {
+            e.printStackTrace();
+        }
+        env.sendDurable(reply);
+    }
+
+    int stripe(String agentName) {
+        return agentName.hashCode() & (STRIPES - 1);
+    }
+
+    //takes the locks of two agents in the order of the stripes
+    void lock(int stripe1, int stripe2) {
+        stripes[Math.min(stripe1, stripe2)].lock();
+        if (stripe1 != stripe2)
+            stripes[Math.max(stripe1, stripe2)].lock();
+    }
+
+    void unlock(int stripe1, int stripe2) {
+        if (stripe1 != stripe2)
+            stripes[Math.max(stripe1, stripe2)].unlock();
+        stripes[Math.min(stripe1, stripe2)].unlock();
+    }
+
+    /**
+     * Runs the task while no trade is being applied (holds all the locks)
+     */
+    public void exclusive(Runnable task) {
+        for (ReentrantLock l : stripes)
+            l.lock();
+        try {
+            task.run();
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--)
+                stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Returns the number of the halves waiting for the other half
+     */
+    public int getPendingMatches() {
+        return pendingMatches.get();
+    }
+
+    /**
+     * Returns the number of the halves which were submitted and not processed yet
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public void shutdown() {
+        for (Partition p : partitions)
+            p.executor.shutdown();
+    }
+}
@@ -0,0 +1,81 @@
+package javastuff;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Consistent hash ring which assigns the agents (by their names) to the environment shards.
+ *
+ * Every shard has a number of points on the ring and an agent belongs to the shard of the first point after the hash
+ * of its name. The hash does not depend on the JVM, so all the agents compute the same assignment.
+ */
+public class ShardRing {
+
+    //points of each shard on the ring
+    static final int POINTS_PER_SHARD = 64;
+
+    int shards;
+    //sorted positions of the points and the shards they belong to
+    int[] points;
+    int[] owners;
+
+    public ShardRing(int shards) {
+        this.shards = shards;
+
+        long[] ring = new long[shards * POINTS_PER_SHARD];
+        for (int s = 0; s < shards; s++)
+            for (int p = 0; p < POINTS_PER_SHARD; p++)
+                //position in the upper bits, shard in the lower, so the sort keeps them together
+                ring[s * POINTS_PER_SHARD + p] = ((long)hash("shard-" + s + "-" + p) << 32) | s;
+        Arrays.sort(ring);
+
+        points = new int[ring.length];
+        owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = (int)(ring[i] >> 32);
+            owners[i] = (int)ring[i];
+        }
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Returns the shard which owns the agent
+     */
+    public int shardOf(String agentName) {
+        if (shards == 1)
+            return 0;
+
+        int h = hash(agentName);
+        int i = Arrays.binarySearch(points, h);
+        if (i < 0)
+            i = -i - 1;
+        //wrap around the ring
+        if (i == points.length)
+            i = 0;
+        return owners[i];
+    }
+
+    /**
+     * Returns the shard which settles the trades between the two agents -- the shard of the agent whose name is first,
+     * so both agents send their orders to the same shard
+     */
+    public int coordinatorOf(String agentName1, String agentName2) {
+        return shardOf(agentName1.compareTo(agentName2) <= 0 ? agentName1 : agentName2);
+    }
+
+    //FNV-1a of the UTF-8 bytes with a final mix
+    static int hash(String s) {
+        int h = 0x811c9dc5;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,123 @@
+package javastuff;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel -- expires the scheduled items after their deadlines.
+ *
+ * The time is divided into ticks and every tick has a slot in the wheel (slot = tick modulo the number of slots), the
+ * items further than one revolution of the wheel wait for the given number of rounds. Scheduling and cancelling take
+ * constant time, advancing the wheel visits only the slots of the elapsed ticks. The items expire at most one tick
+ * after their deadline.
+ *
+ * Not thread safe, it is used from the behaviours of a single agent.
+ */
+public class TimingWheel<T> {
+
+    /**
+     * Scheduled item, can be used to cancel it
+     */
+    public static class Timeout<T> {
+
+        T item;
+        long deadline;
+        int slot = -1;
+        //revolutions of the wheel to wait before the item expires
+        long rounds;
+        Timeout<T> prev;
+        Timeout<T> next;
+
+        public T getItem() {
+            return item;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    long tickMillis;
+    Timeout<T>[] slots;
+    //the next tick to process
+    long currentTick;
+    int size = 0;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int slotCount, long now) {
+        this.tickMillis = tickMillis;
+        this.slots = (Timeout<T>[])new Timeout<?>[slotCount];
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules the item to expire at the deadline (in the time of the clock used to advance the wheel)
+     */
+    public Timeout<T> schedule(T item, long deadline) {
+        Timeout<T> t = new Timeout<T>();
+        t.item = item;
+        t.deadline = deadline;
+
+        //the first tick at or after the deadline, the past deadlines expire with the next tick
+        long tick = Math.max((deadline + tickMillis - 1) / tickMillis, currentTick);
+        t.rounds = (tick - currentTick) / slots.length;
+        t.slot = (int)(tick % slots.length);
+
+        t.next = slots[t.slot];
+        if (t.next != null)
+            t.next.prev = t;
+        slots[t.slot] = t;
+
+        size++;
+        return t;
+    }
+
+    /**
+     * Removes the item from the wheel
+     *
+     * @return false if the item already expired or was cancelled
+     */
+    public boolean cancel(Timeout<T> t) {
+        if (t.slot < 0)
+            return false;
+
+        if (t.prev != null)
+            t.prev.next = t.next;
+        else
+            slots[t.slot] = t.next;
+        if (t.next != null)
+            t.next.prev = t.prev;
+
+        t.slot = -1;
+        t.prev = null;
+        t.next = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * Processes all the ticks up to the time and passes the expired items to the consumer
+     */
+    public void advance(long now, Consumer<T> expired) {
+        long lastTick = now / tickMillis;
+        for (; currentTick <= lastTick; currentTick++) {
+            Timeout<T> t = slots[(int)(currentTick % slots.length)];
+            while (t != null) {
+                Timeout<T> next = t.next;
+                if (t.rounds > 0)
+                    t.rounds--;
+                else {
+                    cancel(t);
+                    expired.accept(t.item);
+                }
+                t = next;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of the scheduled items
+     */
+    public int size() {
+        return size;
+    }
+}
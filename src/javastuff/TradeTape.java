@@ -0,0 +1,373 @@
+package javastuff;
+
+import javastuff.onto.BookInfo;
+import javastuff.onto.MakeTransaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Tape of the settled trades -- fixed-width binary records in a ring of memory-mapped segment files.
+ *
+ * Every book which changes the owner is one record (a leg of the trade): the time, the hash of the conversation ID of
+ * the trade, the hashes of the names of the agent who gives the book and the agent who gets it, the book ID and the
+ * index of the book name, the money paid for the book (the money the receiver sends in the trade divided by the number
+ * of the books it gets) and the number of the legs of the trade. Money sent without getting any book is a leg with the
+ * book ID -1.
+ *
+ * The segments are reused in a ring, the oldest one is overwritten when the last one is full. Each segment starts with
+ * its sequence number, which is also in every record written into it, so the records left from the previous use of the
+ * segment are not read. The names of the agents by their hashes are in agents.txt.
+ *
+ * Writing does not allocate. The trades may be recorded by several threads (the settlement engine), the writing
+ * methods are synchronized.
+ */
+public class TradeTape {
+
+    public static final int RECORD_SIZE = 48;
+    static final int HEADER_SIZE = 16;
+    static final int MAGIC = 0x54415045;
+
+    //offsets of the fields of a record
+    static final int TIME = 0;
+    static final int TRADE = 8;
+    static final int FROM = 16;
+    static final int TO = 20;
+    static final int BOOK_ID = 24;
+    static final int BOOK_NAME = 28;
+    static final int MONEY = 32;
+    static final int LEGS = 40;
+    static final int SEGMENT = 44;
+
+    //the names of the books by the indices in the records
+    static final String[] BOOK_NAMES;
+    static final HashMap<String, Integer> BOOK_INDEX = new HashMap<String, Integer>();
+
+    static {
+        ArrayList<String> names = new ArrayList<String>(Constants.getBooknames());
+        Collections.sort(names);
+        BOOK_NAMES = names.toArray(new String[names.size()]);
+        for (int i = 0; i < BOOK_NAMES.length; i++)
+            BOOK_INDEX.put(BOOK_NAMES[i], i);
+    }
+
+    File dir;
+    int segments;
+    int segmentRecords;
+
+    FileChannel channel;
+    MappedByteBuffer buffer;
+    //the segment being written, its sequence number and the next record
+    int segment;
+    long segmentSeq;
+    int record;
+
+    /**
+     * Opens the tape in the directory for appending, after the records which are already there
+     */
+    public TradeTape(File dir, int segments, int segmentRecords) throws IOException {
+        this.dir = dir;
+        this.segments = segments;
+        this.segmentRecords = segmentRecords;
+        dir.mkdirs();
+
+        //continue in the newest segment
+        long newest = -1;
+        int newestSegment = 0;
+        for (int s = 0; s < segments; s++) {
+            long seq = readSequence(segmentFile(dir, s));
+            if (seq > newest) {
+                newest = seq;
+                newestSegment = s;
+            }
+        }
+
+        if (newest < 0)
+            openSegment(0, 0);
+        else {
+            openSegment(newestSegment, newest);
+            while (record < segmentRecords && isValid(buffer, HEADER_SIZE + record * RECORD_SIZE, segmentSeq))
+                record++;
+        }
+    }
+
+    static File segmentFile(File dir, int segment) {
+        return new File(dir, "segment-" + segment + ".tape");
+    }
+
+    //sequence number of the segment, -1 if there is none
+    static long readSequence(File file) throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE)
+            return -1;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC)
+                return -1;
+            return header.getLong(8);
+        }
+    }
+
+    static boolean isValid(MappedByteBuffer buffer, int offset, long segmentSeq) {
+        return buffer.getLong(offset + TIME) != 0 && buffer.getInt(offset + SEGMENT) == (int)segmentSeq;
+    }
+
+    void openSegment(int segment, long seq) throws IOException {
+        if (channel != null) {
+            buffer.force();
+            channel.close();
+        }
+
+        this.segment = segment;
+        this.segmentSeq = seq;
+        this.record = 0;
+
+        channel = FileChannel.open(segmentFile(dir, segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)segmentRecords * RECORD_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putLong(8, seq);
+    }
+
+    /**
+     * Writes the legs of a settled trade -- the books of each order go to the sender of the other one
+     */
+    public synchronized void record(long time, MakeTransaction sendOrder1, MakeTransaction sendOrder2) {
+        long trade = hash(sendOrder1.getTradeConversationID());
+        int agent1 = (int)hash(sendOrder1.getSenderName());
+        int agent2 = (int)hash(sendOrder2.getSenderName());
+        int legs = legs(sendOrder1.getSendingBooks(), sendOrder2.getSendingMoney())
+                + legs(sendOrder2.getSendingBooks(), sendOrder1.getSendingMoney());
+
+        recordSide(time, trade, agent1, agent2, sendOrder1.getSendingBooks(), sendOrder2.getSendingMoney(), legs);
+        recordSide(time, trade, agent2, agent1, sendOrder2.getSendingBooks(), sendOrder1.getSendingMoney(), legs);
+    }
+
+    /**
+     * Writes a trade of a single book for money (a fill in the order book)
+     */
+    public synchronized void record(long time, long trade, String seller, String buyer, BookInfo book, double price) {
+        Integer name = BOOK_INDEX.get(book.getBookName());
+        append(time, trade, (int)hash(seller), (int)hash(buyer), book.getBookID(), name == null ? -1 : name, price, 1);
+    }
+
+    //the books go from one agent to the other, which pays the money for them
+    void recordSide(long time, long trade, int from, int to, List<BookInfo> books, double money, int legs) {
+        int count = books == null ? 0 : books.size();
+        if (count == 0) {
+            if (money != 0)
+                append(time, trade, from, to, -1, -1, money, legs);
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            BookInfo bi = books.get(i);
+            Integer name = BOOK_INDEX.get(bi.getBookName());
+            append(time, trade, from, to, bi.getBookID(), name == null ? -1 : name, money / count, legs);
+        }
+    }
+
+    //the books of one side, or the money alone
+    static int legs(List<BookInfo> books, double money) {
+        int count = books == null ? 0 : books.size();
+        return count > 0 || money == 0 ? count : 1;
+    }
+
+    void append(long time, long trade, int from, int to, int bookID, int bookName, double money, int legs) {
+        if (record == segmentRecords) {
+            try {
+                openSegment((segment + 1) % segments, segmentSeq + 1);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        int offset = HEADER_SIZE + record * RECORD_SIZE;
+        buffer.putLong(offset + TRADE, trade);
+        buffer.putInt(offset + FROM, from);
+        buffer.putInt(offset + TO, to);
+        buffer.putInt(offset + BOOK_ID, bookID);
+        buffer.putInt(offset + BOOK_NAME, bookName);
+        buffer.putDouble(offset + MONEY, money);
+        buffer.putInt(offset + LEGS, legs);
+        buffer.putInt(offset + SEGMENT, (int)segmentSeq);
+        //the time is written last, a record without it is not read
+        buffer.putLong(offset + TIME, Math.max(time, 1));
+        record++;
+    }
+
+    /**
+     * Writes the names of the agents, so the readers can find them by the hashes in the records
+     */
+    public void writeAgents(List<String> agents) throws IOException {
+        try (PrintWriter out = new PrintWriter(new File(dir, "agents.txt"), "UTF-8")) {
+            for (String agent : agents)
+                out.println((int)hash(agent) + " " + agent);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    //FNV-1a over the characters, does not allocate
+    static long hash(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        if (s == null)
+            return h;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * A leg of a trade read from the tape, the same object is reused for all the records
+     */
+    public static class Leg {
+        public long time;
+        public long trade;
+        public int from;
+        public int to;
+        public int bookID;
+        public int bookName;
+        public double money;
+        public int legs;
+
+        /**
+         * Returns the name of the book, or null if it was not known
+         */
+        public String getBookName() {
+            return bookName < 0 || bookName >= BOOK_NAMES.length ? null : BOOK_NAMES[bookName];
+        }
+    }
+
+    /**
+     * Streams all the legs on the tape in the directory, the oldest first
+     */
+    public static void read(File dir, Consumer<Leg> consumer) throws IOException {
+
+        //the segments in the order they were written
+        ArrayList<long[]> order = new ArrayList<long[]>();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith("segment-") || !name.endsWith(".tape"))
+                continue;
+            long seq = readSequence(f);
+            if (seq >= 0)
+                order.add(new long[] {seq, Integer.parseInt(name.substring(8, name.length() - 5))});
+        }
+        order.sort((a, b) -> Long.compare(a[0], b[0]));
+
+        Leg leg = new Leg();
+        for (long[] s : order) {
+            File f = segmentFile(dir, (int)s[1]);
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                for (int offset = HEADER_SIZE; offset + RECORD_SIZE <= buffer.limit(); offset += RECORD_SIZE) {
+                    if (!isValid(buffer, offset, s[0]))
+                        break;
+                    leg.time = buffer.getLong(offset + TIME);
+                    leg.trade = buffer.getLong(offset + TRADE);
+                    leg.from = buffer.getInt(offset + FROM);
+                    leg.to = buffer.getInt(offset + TO);
+                    leg.bookID = buffer.getInt(offset + BOOK_ID);
+                    leg.bookName = buffer.getInt(offset + BOOK_NAME);
+                    leg.money = buffer.getDouble(offset + MONEY);
+                    leg.legs = buffer.getInt(offset + LEGS);
+                    consumer.accept(leg);
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams the trades on the tape, the oldest first -- all the legs of a trade at once (the list is reused)
+     */
+    public static void readTrades(File dir, Consumer<List<Leg>> consumer) throws IOException {
+        ArrayList<Leg> trade = new ArrayList<Leg>();
+        read(dir, leg -> {
+            //the rest of the previous trade was overwritten
+            if (!trade.isEmpty() && trade.get(0).trade != leg.trade)
+                trade.clear();
+
+            Leg copy = new Leg();
+            copy.time = leg.time;
+            copy.trade = leg.trade;
+            copy.from = leg.from;
+            copy.to = leg.to;
+            copy.bookID = leg.bookID;
+            copy.bookName = leg.bookName;
+            copy.money = leg.money;
+            copy.legs = leg.legs;
+            trade.add(copy);
+
+            if (trade.size() == leg.legs) {
+                consumer.accept(trade);
+                trade.clear();
+            }
+        });
+    }
+
+    //the trade is a purchase for money -- all its books went the same way and their names are known
+    static boolean isPurchase(List<Leg> trade) {
+        for (int i = 0; i < trade.size(); i++) {
+            Leg l = trade.get(i);
+            if (l.from != trade.get(0).from || l.bookID < 0 || l.bookName < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Computes the volume weighted average price of every book (by its name) from the purchases for money -- the
+     * prices of the books in the barter trades are not known
+     *
+     * @return the average prices by the book names
+     */
+    public static HashMap<String, Double> vwap(File dir) throws IOException {
+        double[] money = new double[BOOK_NAMES.length];
+        long[] volume = new long[BOOK_NAMES.length];
+
+        readTrades(dir, trade -> {
+            if (!isPurchase(trade))
+                return;
+            for (Leg l : trade) {
+                money[l.bookName] += l.money;
+                volume[l.bookName]++;
+            }
+        });
+
+        HashMap<String, Double> prices = new HashMap<String, Double>();
+        for (int i = 0; i < BOOK_NAMES.length; i++)
+            if (volume[i] > 0)
+                prices.put(BOOK_NAMES[i], money[i] / volume[i]);
+        return prices;
+    }
+
+    /**
+     * Replays the prices of the books bought for money into the price model of the trader, in the order of the trades
+     */
+    public static void replay(File dir, BookTraderLogic logic) throws IOException {
+        readTrades(dir, trade -> {
+            if (!isPurchase(trade))
+                return;
+            for (Leg l : trade)
+                logic.observeFill(l.getBookName(), l.money);
+        });
+    }
+}
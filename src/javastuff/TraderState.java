@@ -0,0 +1,32 @@
+package javastuff;
+
+import javastuff.onto.BookInfo;
+import javastuff.onto.Goal;
+
+import java.util.ArrayList;
+
+/**
+ * The position of a trader the trading logic works with -- its books, goals and money
+ */
+public interface TraderState {
+
+    ArrayList<BookInfo> getMyBooks();
+
+    ArrayList<Goal> getMyGoals();
+
+    double getMyMoney();
+
+    /**
+     * Checks the book is promised in a trade which is not settled yet
+     */
+    default boolean isReserved(int bookID) {
+        return false;
+    }
+
+    /**
+     * Returns the money promised in the trades which are not settled yet
+     */
+    default double getReservedMoney() {
+        return 0;
+    }
+}
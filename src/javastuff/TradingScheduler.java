@@ -0,0 +1,78 @@
+package javastuff;
+
+/**
+ * Decides how often a trader starts a new round of buying (a CFP to the other traders) and limits the number of the
+ * rounds waiting for the answers.
+ *
+ * The rate of the rounds is additive increase, multiplicative decrease: a round in which we accepted an offer shortens
+ * the period a little, a round in which most of the traders refused or did not answer in time makes it longer by half.
+ * The rounds in which we got offers but did not want them do not change anything.
+ */
+public class TradingScheduler {
+
+    //the period gets shorter by this after a successful round
+    static final long DECREASE_STEP = 5;
+    static final double BACKOFF = 1.5;
+
+    long minPeriod;
+    long maxPeriod;
+    int maxInFlight;
+
+    long period;
+    int inFlight = 0;
+
+    public TradingScheduler(long minPeriod, long maxPeriod, int maxInFlight) {
+        this.minPeriod = minPeriod;
+        this.maxPeriod = maxPeriod;
+        this.maxInFlight = maxInFlight;
+        this.period = minPeriod;
+    }
+
+    /**
+     * Starts a round if there are not too many of them already
+     *
+     * @return false if the round should be skipped
+     */
+    public boolean tryStart() {
+        if (inFlight >= maxInFlight)
+            return false;
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Gives back a started round which was not sent after all
+     */
+    public void cancel() {
+        inFlight--;
+    }
+
+    /**
+     * Registers the end of a round
+     *
+     * @param asked     the number of the traders who got the CFP
+     * @param answered  the number of the answers which came in time
+     * @param refused   the number of the refusals among the answers
+     * @param accepted  we accepted one of the offers
+     * @return true if the period changed
+     */
+    public boolean finished(int asked, int answered, int refused, boolean accepted) {
+        inFlight--;
+
+        long old = period;
+        if (accepted)
+            period = Math.max(minPeriod, period - DECREASE_STEP);
+        else if (2 * (refused + asked - answered) > asked)
+            period = Math.min(maxPeriod, (long)(period * BACKOFF));
+
+        return period != old;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+}
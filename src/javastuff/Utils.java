@@ -5,6 +5,7 @@ import javastuff.onto.BookInfo;
 import javastuff.onto.Goal;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Created by Martin Pilat on 15.4.14.
@@ -61,4 +62,26 @@ public class Utils {
         return nBooks == goals.size();
 
     }
+
+    /**
+     * Parses the arguments of an agent given as key=value pairs, e.g. t1:javastuff.BookTrader(timeScale=100)
+     */
+    public static HashMap<String, String> parseArguments(Object[] args) {
+
+        HashMap<String, String> parsed = new HashMap<String, String>();
+
+        if (args == null)
+            return parsed;
+
+        for (Object arg : args) {
+            String s = arg.toString().trim();
+            int eq = s.indexOf('=');
+            if (eq < 0)
+                parsed.put(s, "true");
+            else
+                parsed.put(s.substring(0, eq).trim(), s.substring(eq + 1).trim());
+        }
+
+        return parsed;
+    }
 }
@@ -0,0 +1,22 @@
+package javastuff;
+
+/**
+ * Clock which only moves when it is told to, used to run the market without waiting for the real time
+ */
+public class VirtualClock implements Clock {
+
+    long now;
+
+    public VirtualClock(long start) {
+        this.now = start;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    public void advance(long millis) {
+        now += millis;
+    }
+}
@@ -0,0 +1,21 @@
+package javastuff.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * Request to release the reservation of a prepared transaction which will not be committed
+ */
+public class AbortTransfer implements AgentAction {
+
+    String transferID;
+
+    @Slot(mandatory = true)
+    public String getTransferID() {
+        return transferID;
+    }
+
+    public void setTransferID(String transferID) {
+        this.transferID = transferID;
+    }
+}
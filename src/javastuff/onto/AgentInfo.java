@@ -15,6 +15,7 @@ public class AgentInfo implements Concept {
     ArrayList<BookInfo> books;
     ArrayList<Goal> goals;
     double money;
+    int sequence;
 
     @Slot(mandatory = true)
     public ArrayList<BookInfo> getBooks() {
@@ -43,6 +44,15 @@ public class AgentInfo implements Concept {
         this.money = money;
     }
 
+    //sequence number of the last transaction applied to this information
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
     public String toString() {
 
         String ret = "books: ";
@@ -0,0 +1,31 @@
+package javastuff.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * The agents who have a book with the name -- a bit set of the numbers of the agents (as BitSet.toByteArray)
+ */
+public class BookHolders implements Concept {
+
+    String bookName;
+    byte[] holders;
+
+    @Slot(mandatory = true)
+    public String getBookName() {
+        return bookName;
+    }
+
+    public void setBookName(String bookName) {
+        this.bookName = bookName;
+    }
+
+    @Slot(mandatory = true)
+    public byte[] getHolders() {
+        return holders;
+    }
+
+    public void setHolders(byte[] holders) {
+        this.holders = holders;
+    }
+}
@@ -0,0 +1,21 @@
+package javastuff.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * Request to apply the prepared side of a transaction, the reply contains the PositionDelta of the agent
+ */
+public class CommitTransfer implements AgentAction {
+
+    String transferID;
+
+    @Slot(mandatory = true)
+    public String getTransferID() {
+        return transferID;
+    }
+
+    public void setTransferID(String transferID) {
+        this.transferID = transferID;
+    }
+}
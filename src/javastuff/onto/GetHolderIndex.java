@@ -0,0 +1,22 @@
+package javastuff.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * Request (to the environment) for the index of the holders of the books. The agents the requester already knows are
+ * not sent again.
+ */
+public class GetHolderIndex implements AgentAction {
+
+    int knownAgents;
+
+    @Slot(mandatory = true)
+    public int getKnownAgents() {
+        return knownAgents;
+    }
+
+    public void setKnownAgents(int knownAgents) {
+        this.knownAgents = knownAgents;
+    }
+}
@@ -0,0 +1,46 @@
+package javastuff.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.AggregateSlot;
+import jade.content.onto.annotations.Slot;
+
+import java.util.ArrayList;
+
+/**
+ * Holders of the books in the ledger of an environment. The agents are numbered in the order the environment added
+ * them, the index contains the names of the agents from firstAgent on and for every book name the set of the numbers
+ * of the agents who have a book with the name.
+ */
+public class HolderIndex implements Concept {
+
+    int firstAgent;
+    ArrayList<String> agents;
+    ArrayList<BookHolders> books;
+
+    @Slot(mandatory = true)
+    public int getFirstAgent() {
+        return firstAgent;
+    }
+
+    public void setFirstAgent(int firstAgent) {
+        this.firstAgent = firstAgent;
+    }
+
+    @AggregateSlot(cardMin = 0, type = String.class)
+    public ArrayList<String> getAgents() {
+        return agents;
+    }
+
+    public void setAgents(ArrayList<String> agents) {
+        this.agents = agents;
+    }
+
+    @AggregateSlot(cardMin = 0)
+    public ArrayList<BookHolders> getBooks() {
+        return books;
+    }
+
+    public void setBooks(ArrayList<BookHolders> books) {
+        this.books = books;
+    }
+}
@@ -0,0 +1,42 @@
+package javastuff.onto;
+
+import jade.content.Concept;
+import jade.content.onto.annotations.Slot;
+
+/**
+ * Limit order for a single book in the order book of the environment -- a bid (buy) for a book with the name, or an
+ * ask for the book with the ID, at the given price or better
+ */
+public class LimitOrder implements Concept {
+
+    BookInfo book;
+    boolean buy;
+    double price;
+
+    @Slot(mandatory = true)
+    public BookInfo getBook() {
+        return book;
+    }
+
+    public void setBook(BookInfo book) {
+        this.book = book;
+    }
+
+    @Slot(mandatory = true)
+    public boolean getBuy() {
+        return buy;
+    }
+
+    public void setBuy(boolean buy) {
+        this.buy = buy;
+    }
+
+    @Slot(mandatory = true)
+    public double getPrice() {
+        return price;
+    }
+
+    public void setPrice(double price) {
+        this.price = price;
+    }
+}
@@ -0,0 +1,28 @@
+package javastuff.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.AggregateSlot;
+
+import java.util.ArrayList;
+
+/**
+ * Request (to the environment) to process several MakeTransaction orders of the sender at once.
+ *
+ * Each order is answered by its own INFORM (with the PositionDelta) or FAILURE message of the PROTOCOL, the
+ * conversation ID of the answer is the PROTOCOL and the tradeConversationID of the order joined by a dash.
+ */
+public class MakeTransactions implements AgentAction {
+
+    public static final String PROTOCOL = "batch-settlement";
+
+    ArrayList<MakeTransaction> orders;
+
+    @AggregateSlot(cardMin = 1)
+    public ArrayList<MakeTransaction> getOrders() {
+        return orders;
+    }
+
+    public void setOrders(ArrayList<MakeTransaction> orders) {
+        this.orders = orders;
+    }
+}
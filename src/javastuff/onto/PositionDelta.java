@@ -0,0 +1,59 @@
+package javastuff.onto;
+
+import jade.content.Predicate;
+import jade.content.onto.annotations.AggregateSlot;
+import jade.content.onto.annotations.Slot;
+
+import java.util.ArrayList;
+
+/**
+ * Change of the position of an agent after a transaction -- books it received and sent, change of its money and the
+ * sequence number of its position after the change
+ */
+public class PositionDelta implements Predicate {
+
+    ArrayList<BookInfo> booksIn;
+    ArrayList<BookInfo> booksOut;
+    double moneyChange;
+    int sequence;
+
+    @AggregateSlot(cardMin = 0)
+    public ArrayList<BookInfo> getBooksIn() {
+        return booksIn;
+    }
+
+    public void setBooksIn(ArrayList<BookInfo> booksIn) {
+        this.booksIn = booksIn;
+    }
+
+    @AggregateSlot(cardMin = 0)
+    public ArrayList<BookInfo> getBooksOut() {
+        return booksOut;
+    }
+
+    public void setBooksOut(ArrayList<BookInfo> booksOut) {
+        this.booksOut = booksOut;
+    }
+
+    @Slot(mandatory = true)
+    public double getMoneyChange() {
+        return moneyChange;
+    }
+
+    public void setMoneyChange(double moneyChange) {
+        this.moneyChange = moneyChange;
+    }
+
+    @Slot(mandatory = true)
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    public String toString() {
+        return "in: " + booksIn + " out: " + booksOut + " money: " + moneyChange + " seq: " + sequence;
+    }
+}
@@ -0,0 +1,29 @@
+package javastuff.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.AggregateSlot;
+
+import java.util.ArrayList;
+
+/**
+ * Request (to the environment in the order book mode) to replace all the resting orders of the sender with the given
+ * ones. The orders which did not change keep their time priority.
+ *
+ * Every fill of an order is answered by an INFORM of the PROTOCOL with the PositionDelta of the agent, an order which
+ * cannot be placed is dropped without an answer.
+ */
+public class PostQuotes implements AgentAction {
+
+    public static final String PROTOCOL = "order-book";
+
+    ArrayList<LimitOrder> orders;
+
+    @AggregateSlot(cardMin = 0)
+    public ArrayList<LimitOrder> getOrders() {
+        return orders;
+    }
+
+    public void setOrders(ArrayList<LimitOrder> orders) {
+        this.orders = orders;
+    }
+}
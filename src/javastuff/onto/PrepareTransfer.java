@@ -0,0 +1,75 @@
+package javastuff.onto;
+
+import jade.content.AgentAction;
+import jade.content.onto.annotations.AggregateSlot;
+import jade.content.onto.annotations.Slot;
+
+import java.util.ArrayList;
+
+/**
+ * Request (from the coordinating environment shard to the shard of the other agent) to check and reserve one side of a
+ * transaction -- the agent must own the books it sends and have enough money
+ */
+public class PrepareTransfer implements AgentAction {
+
+    String transferID;
+    String agentName;
+    ArrayList<BookInfo> booksOut;
+    ArrayList<BookInfo> booksIn;
+    double moneyOut;
+    double moneyIn;
+
+    @Slot(mandatory = true)
+    public String getTransferID() {
+        return transferID;
+    }
+
+    public void setTransferID(String transferID) {
+        this.transferID = transferID;
+    }
+
+    @Slot(mandatory = true)
+    public String getAgentName() {
+        return agentName;
+    }
+
+    public void setAgentName(String agentName) {
+        this.agentName = agentName;
+    }
+
+    @AggregateSlot(cardMin = 0)
+    public ArrayList<BookInfo> getBooksOut() {
+        return booksOut;
+    }
+
+    public void setBooksOut(ArrayList<BookInfo> booksOut) {
+        this.booksOut = booksOut;
+    }
+
+    @AggregateSlot(cardMin = 0)
+    public ArrayList<BookInfo> getBooksIn() {
+        return booksIn;
+    }
+
+    public void setBooksIn(ArrayList<BookInfo> booksIn) {
+        this.booksIn = booksIn;
+    }
+
+    @Slot(mandatory = true)
+    public double getMoneyOut() {
+        return moneyOut;
+    }
+
+    public void setMoneyOut(double moneyOut) {
+        this.moneyOut = moneyOut;
+    }
+
+    @Slot(mandatory = true)
+    public double getMoneyIn() {
+        return moneyIn;
+    }
+
+    public void setMoneyIn(double moneyIn) {
+        this.moneyIn = moneyIn;
+    }
+}